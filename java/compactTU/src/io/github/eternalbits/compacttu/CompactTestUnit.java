@@ -24,9 +24,13 @@ import java.util.Random;
 
 import io.github.eternalbits.compactvd.Static;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 import io.github.eternalbits.disk.DiskImageJournal;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageObserver;
 import io.github.eternalbits.disk.DiskImageProgress;
+import io.github.eternalbits.disk.ReadQueue;
+import io.github.eternalbits.disk.ZeroDetector;
 import io.github.eternalbits.disks.DiskImages;
 
 public class CompactTestUnit {
@@ -91,6 +95,22 @@ public class CompactTestUnit {
 			exit(String.format("%s %s » %s", args[0], args[2], args[1]), timer);
 		}
 		
+		if ("ZEROS".equals(args[0])) {
+			long timer = System.currentTimeMillis();
+			new Zeros(args.length > 1? Integer.parseInt(args[1]): 4096).run();
+			exit("ZEROS", timer);
+		}
+		
+		if ("DEPTH".equals(args[0])) {
+			long timer = System.currentTimeMillis();
+			String media = System.getProperty("media");
+			if (media != null)
+				DiskImageMedia.setPreferredType(DiskImageMedia.typeOf(media));
+			new Depth(args[1], args.length > 2? Integer.parseInt(args[2]): 256, 
+					args.length > 3? Integer.parseInt(args[3]): 64).run();
+			exit("DEPTH", timer);
+		}
+		
 		System.exit(0);
 	}
 	
@@ -122,7 +142,7 @@ public class CompactTestUnit {
 	}
 
 	private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-	private static String bytesToHex(byte[] bytes) {
+	static String bytesToHex(byte[] bytes) {
 		char[] hexChars = new char[bytes.length * 2];
 		for (int j = 0; j < bytes.length; j++) {
 			int v = bytes[j] & 0xFF;
@@ -158,9 +178,20 @@ class Copy implements Runnable, DiskImageObserver {
 			try (DiskImage clone = DiskImages.create(source.getType(), new File(args_2_), source.getDiskSize())) {
 				System.out.println(source.toString());
 				source.optimize(DiskImage.FREE_BLOCKS_UNUSED);
+				String digest = System.getProperty("digest");
+				MessageDigest md = digest == null? null: MessageDigest.getInstance(digest);
+				clone.setCopyDigest(md);
+				clone.setCopyThreads(Integer.getInteger("readers", 1));
+				if (Boolean.getBoolean("sequential"))
+					clone.setCopyOrder(DiskImage.COPY_FILE_ORDER);
+				clone.setCopyDirect(Boolean.getBoolean("direct"));
+				clone.setCopyPreallocate(!Boolean.getBoolean("noprealloc"));
+				clone.setCopyTransfer(!Boolean.getBoolean("notransfer"));
 				clone.addObserver(this, false);
 				clone.copy(source);
 				clone.removeObserver(this);
+				if (md != null)
+					System.out.println(String.format("%s: %s", digest, CompactTestUnit.bytesToHex(md.digest())));
 			}
 			catch (Exception e) { e.printStackTrace(); }
 		}
@@ -190,8 +221,13 @@ class Inline implements Runnable, DiskImageObserver {
 	public void run() {
 		try (DiskImage image = DiskImages.open(new File(args_1_), "rw")) {
 			System.out.println(image.toString());
+			image.setScanThreads(Integer.getInteger("threads", 1));
+			image.setQueueDepth(Integer.getInteger("depth", 1));
 			image.optimize(options(args_2_));
 			image.addObserver(this, false);
+			String strategy = System.getProperty("strategy");
+			if (strategy != null)
+				image.setCompactStrategy(DiskImageCompactPlan.strategyOf(strategy));
 			image.compact();
 			image.removeObserver(this);
 		}
@@ -213,3 +249,84 @@ class Inline implements Runnable, DiskImageObserver {
 		}
 	}
 }
+
+class Zeros implements Runnable {
+	private static final int[] BLOCK_SIZES = {0x10000, 0x100000, 0x200000}; // VMDK grain, VDI and VHD blocks
+	private final long megabytes;
+	public Zeros(int megabytes) {
+		this.megabytes = megabytes;
+	}
+	@Override
+	public void run() {
+		ZeroDetector[] all = ZeroDetector.getAll();
+		System.out.println(String.format("Best: %s", ZeroDetector.getBest()));
+		System.out.println(String.format("%-12s%10s%10s%10s  (MB/s, zero filled blocks)", "", "64K", "1M", "2M"));
+		for (ZeroDetector zd: all) {
+			StringBuilder line = new StringBuilder(String.format("%-12s", zd));
+			for (int size: BLOCK_SIZES) {
+				byte[] block = new byte[size];
+				int count = (int)(megabytes * 0x100000 / size);
+				measure(zd, block, count);					// warm up
+				line.append(String.format("%10d", megabytes * 1000000000L / measure(zd, block, count)));
+			}
+			System.out.println(line);
+		}
+	}
+	private static long measure(ZeroDetector zd, byte[] block, int count) {
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (!zd.isZero(block, 0, block.length))
+				throw new IllegalStateException(zd.toString());
+		}
+		return Math.max(1, System.nanoTime() - start);
+	}
+}
+
+class Depth implements Runnable {
+	private static final int[] DEPTHS = {1, 2, 4, 8, 16, 32, 64};
+	private final String path;
+	private final long megabytes;
+	private final int size;
+	public Depth(String path, int megabytes, int kilobytes) {
+		this.path = path;
+		this.megabytes = megabytes;
+		this.size = kilobytes * 1024;
+	}
+	@Override
+	public void run() {
+		try (DiskImage image = DiskImages.open(new File(path), "r")) {
+			DiskImageMedia media = image.getImageMedia();
+			long blocks = new File(path).length() / size;
+			int count = (int)Math.min(blocks, megabytes * 0x100000 / size);
+			System.out.println(String.format("%s [%s] %d random reads of %d KB", path, media, count, size / 1024));
+			System.out.println(String.format("%-8s%10s%10s", "Depth", "MB/s", "IOPS"));
+			for (int depth: DEPTHS) {
+				long[] offset = new long[count];
+				Random random = new Random(depth);
+				for (int i = 0; i < count; i++)
+					offset[i] = (long)(random.nextDouble() * blocks) * size;
+				long nanos = measure(media, depth, offset);
+				System.out.println(String.format("%-8d%10d%10d", depth, 
+						(long)count * size * 1000000000L / 0x100000 / nanos, count * 1000000000L / nanos));
+			}
+		}
+		catch (Exception e) { e.printStackTrace(); }
+	}
+	private long measure(DiskImageMedia media, int depth, long[] offset) throws Exception {
+		byte[][] buffer = new byte[depth][size];
+		ReadQueue.Read[] ahead = new ReadQueue.Read[depth];
+		long start = System.nanoTime();
+		try (ReadQueue reads = new ReadQueue(media, depth)) {
+			for (int i = 0; i < offset.length; i++) {
+				if (ahead[i % depth] != null)
+					ahead[i % depth].await();
+				ahead[i % depth] = reads.submit(offset[i], buffer[i % depth], 0, size);
+			}
+			for (ReadQueue.Read read: ahead) {
+				if (read != null)
+					read.await();
+			}
+		}
+		return Math.max(1, System.nanoTime() - start);
+	}
+}
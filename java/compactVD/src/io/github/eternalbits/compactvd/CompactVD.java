@@ -38,8 +38,11 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import io.github.eternalbits.compactvd.gui.FrontEnd;
+import io.github.eternalbits.disk.AllocationBitmap;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 import io.github.eternalbits.disk.DiskImageJournal;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageObserver;
 import io.github.eternalbits.disk.DiskImageProgress;
 import io.github.eternalbits.disks.DiskImages;
@@ -60,6 +63,17 @@ public class CompactVD implements DiskImageObserver {
 	private final static String IMAGE_NOT_CHANGED = "The disk image '%s' was NOT changed.";
 	private final static String IMAGE_NOT_CREATED = "No disk image was created.";
 	private boolean verbose;
+	private int threads = 1;
+	private int depth = 1;
+	private int readers = 1;
+	private long budget = 16L << 20;
+	private int order = DiskImage.COPY_VIRTUAL_ORDER;
+	private boolean direct = false;
+	private boolean preallocate = true;
+	private boolean transfer = true;
+	private boolean holes = false;
+	private int strategy = DiskImageCompactPlan.MINIMAL_MOVES;
+	private int advice = 0;
 	
 	private boolean isCancelled() {
 		return mainThread.isInterrupted();
@@ -69,6 +83,11 @@ public class CompactVD implements DiskImageObserver {
 		if (verbose) System.out.println(verb);
 	}
 	
+	private void verboseAdvice(DiskImage image) {
+		if (advice != 0)
+			verboseProgress(String.format("Cache hints for %s: %d", image.getPath(), image.getCacheHints()));
+	}
+	
 	private void getRuntime() {
 		Runtime.getRuntime().addShutdownHook(new Thread() { // Ctrl+C
 			@Override
@@ -85,14 +104,50 @@ public class CompactVD implements DiskImageObserver {
 		task = DiskImageProgress.OPTIMIZE;
 		try (DiskImage image = DiskImages.open(file, "r")) {
 			verboseProgress(SEARCHING_SPACE);
+			image.setScanThreads(threads);
+			image.setQueueDepth(depth);
+			image.setCacheAdvice(advice);
+			image.setHostHoles(holes);
 			image.addObserver(this, false);
 			image.optimize(options);
 			image.removeObserver(this);
+			verboseAdvice(image);
 			dump(image.getView());
 		}
 		task = DiskImageProgress.NO_TASK;
 	}
 	
+	/* Prints the extents of the image as qemu-img map --output=json does, one entry
+	 *  for each range with data, stored in one piece, and for each range without.
+	 */
+	private void showMap(File file) throws IOException {
+		try (DiskImage image = DiskImages.open(file, "r")) {
+			long next = 0, size = image.getDiskSize();
+			String sep = "[";
+			for (DiskImage.MappedExtent extent: image.getMappedExtents(0, size)) {
+				if (extent.offset > next) {
+					printMapEntry(sep, next, extent.offset - next, false, -1);
+					sep = ",\n";
+				}
+				printMapEntry(sep, extent.offset, extent.length, true, extent.fileOffset);
+				sep = ",\n";
+				next = extent.offset + extent.length;
+			}
+			if (size > next || next == 0) {
+				printMapEntry(sep, next, size - next, false, -1);
+			}
+			System.out.println("]");
+		}
+	}
+	
+	/* The offset of an extent with data is left out when it is not known (-1).
+	 */
+	private static void printMapEntry(String sep, long start, long length, boolean data, long offset) {
+		System.out.print(String.format("%s{ \"start\": %d, \"length\": %d, \"depth\": 0, \"present\": %b,"
+				+ " \"zero\": %b, \"data\": %b, \"compressed\": false%s}", sep, start, length, data, !data, data,
+				data && offset != -1? String.format(", \"offset\": %d", offset): ""));
+	}
+	
 	private void compact(File file, int options) throws IOException {
 		long mtime = file.lastModified();
 		task = DiskImageProgress.COMPACT;
@@ -101,14 +156,24 @@ public class CompactVD implements DiskImageObserver {
 			try (DiskImage image = DiskImages.open(file, "rw")) {
 				FileLock fileLock = image.tryLock();
 				verboseProgress(SEARCHING_SPACE);
+				image.setScanThreads(threads);
+				image.setQueueDepth(depth);
+				image.setCacheAdvice(advice);
+				image.setHostHoles(holes);
 				image.addObserver(this, false);
 				image.optimize(options);
 				image.removeObserver(this);
+				verboseAdvice(image);
 				if (!isCancelled()) {
 					verboseProgress("Compacting "+file.getName());
+					image.setCompactStrategy(strategy);
+					DiskImageCompactPlan plan = verbose? image.planCompact(): null;
+					if (plan != null)
+						verboseProgress(plan.toString());
 					image.addObserver(this, false);
 					image.compact();
 					image.removeObserver(this);
+					verboseAdvice(image);
 				}
 				fileLock.release();
 			}
@@ -133,16 +198,27 @@ public class CompactVD implements DiskImageObserver {
 					if (macVolumes(from) && mode.equals("rw"))
 						source = image.tryLock();
 					verboseProgress(SEARCHING_SPACE);
+					image.setScanThreads(threads);
+					image.setHostHoles(holes);
 					image.addObserver(this, false);
-					image.optimize(options);
+					image.optimize(options & ~DiskImage.FREE_BLOCKS_ZEROED); // zeros are dropped by copy
 					image.removeObserver(this);
+					image.setCacheAdvice(advice);
 					if (!isCancelled()) {
 						verboseProgress("Copying "+from.getName()+" to "+to.getName());
 						if (macVolumes(to))
 							fileLock = clone.tryLock();
+						clone.setCopyThreads(readers);
+						clone.setCopyBudget(budget);
+						clone.setCopyOrder(order);
+						clone.setCopyDirect(direct);
+						clone.setCopyPreallocate(preallocate);
+						clone.setCopyTransfer(transfer);
+						clone.setCacheAdvice(advice);
 						clone.addObserver(this, false);
 						clone.copy(image);
 						clone.removeObserver(this);
+						verboseAdvice(clone);
 						if (fileLock != null) 
 							fileLock.release();
 						if (!isCancelled()) {
@@ -197,6 +273,7 @@ public class CompactVD implements DiskImageObserver {
 	private final static String FILE_ALREADY_EXISTS = "File \"%s\" already exists";
 	private final static String INCORRECT_COMMAND = "The syntax of the command is incorrect.";
 	private final static String TOO_MANY_OPTIONS = "There are too many options: %s.";
+	private final static String NOT_A_POSITIVE_NUMBER = "The option %s must be a positive number.";
 	
 	private File getOptionValues(CommandLine cmd, String opt) throws ParseException {
 		if (cmd.getOptionValues(opt).length != 1)
@@ -204,6 +281,17 @@ public class CompactVD implements DiskImageObserver {
 		return new File(cmd.getOptionValue(opt));
 	}
 	
+	private int getPositiveInt(CommandLine cmd, String opt) throws ParseException {
+		if (cmd.getOptionValues(opt).length != 1)
+			throw new ParseException(String.format(TOO_MANY_OPTIONS, opt));
+		try {
+			int value = Integer.parseInt(cmd.getOptionValue(opt));
+			if (value > 0)
+				return value;
+		} catch (NumberFormatException e) {}
+		throw new ParseException(String.format(NOT_A_POSITIVE_NUMBER, opt));
+	}
+	
 	private static final String version = "2.8";
 	private static final String year = "2024";
 	private static final String jar = new java.io.File(CompactVD.class.getProtectionDomain()
@@ -241,6 +329,7 @@ public class CompactVD implements DiskImageObserver {
 		source.addOption(Option.builder("i").longOpt("inplace").desc("compact <src> image file in place").hasArgs().argName("src").build());
 		source.addOption(Option.builder("c").longOpt("copy").desc("copy <src> to a new, optimized image").hasArgs().argName("src").build());
 		source.addOption(Option.builder("d").longOpt("dump").desc("print <src> disk image details").hasArgs().argName("src").build());
+		source.addOption(Option.builder().longOpt("map").desc("print <src> allocation map as JSON, like qemu-img map").hasArgs().argName("src").build());
 		source.setRequired(true);
 		options.addOptionGroup(source);
 		options.addOptionGroup(new OptionGroup()
@@ -254,6 +343,19 @@ public class CompactVD implements DiskImageObserver {
 		options.addOption(Option.builder("w").longOpt("write").desc("set <out> as destination file for copy").hasArgs().argName("out").build());
 		options.addOption(Option.builder("f").longOpt("format").desc("copy output format: VDI, VMDK, VHD or RAW").hasArgs().argName("fmt").build());
 		options.addOption(Option.builder("o").longOpt("overwrite").desc("overwrite existing file on copy").build());
+		options.addOption(Option.builder("t").longOpt("threads").desc("number of threads searching zero filled space").hasArgs().argName("n").build());
+		options.addOption(Option.builder("q").longOpt("queue-depth").desc("number of reads in flight searching zero filled space or compacting").hasArgs().argName("n").build());
+		options.addOption(Option.builder("p").longOpt("parallel").desc("number of threads reading <src> on copy").hasArgs().argName("n").build());
+		options.addOption(Option.builder("b").longOpt("buffer").desc("megabytes of data read but not written on copy").hasArgs().argName("mb").build());
+		options.addOption(Option.builder().longOpt("bitmap-memory").desc("megabytes of a file system bitmap kept in memory").hasArgs().argName("mb").build());
+		options.addOption(Option.builder("s").longOpt("sequential").desc("copy blocks in <src> file order").build());
+		options.addOption(Option.builder("x").longOpt("direct").desc("write the copy around the host cache").build());
+		options.addOption(Option.builder("n").longOpt("no-preallocate").desc("grow the copy as it is written").build());
+		options.addOption(Option.builder().longOpt("no-transfer").desc("read and write every block of the copy").build());
+		options.addOption(Option.builder().longOpt("host-holes").desc("take holes of the image file as zeros, as listed by filefrag").build());
+		options.addOption(Option.builder("k").longOpt("compaction").desc("compact strategy: MINIMAL (default), ORDERED, DEFRAG or PUNCH").hasArgs().argName("how").build());
+		options.addOption(Option.builder("a").longOpt("advise").desc("drop image data from the host cache (DONTNEED, the only advice given): SCAN, COPY, COMPACT, ALL or NONE (default)").hasArgs().argName("phase").build());
+		options.addOption(Option.builder("m").longOpt("media").desc("image file I/O: FILE, CHANNEL (default), MAPPED or DIRECT").hasArgs().argName("io").build());
 		options.addOption(Option.builder("v").longOpt("verbose").desc("explain what is being done").build());
 		return options;
 	}
@@ -307,6 +409,73 @@ public class CompactVD implements DiskImageObserver {
 			
 			verbose = cmd.hasOption("v");
 			
+			if (cmd.hasOption("m")) {
+				if (cmd.getOptionValues("m").length != 1)
+					throw new ParseException(String.format(TOO_MANY_OPTIONS, "m"));
+				int media = DiskImageMedia.typeOf(cmd.getOptionValue("m"));
+				if (media == -1)
+					throw new ParseException(INCORRECT_COMMAND);
+				DiskImageMedia.setPreferredType(media);
+			}
+			
+			if (cmd.hasOption("k")) {
+				if (cmd.getOptionValues("k").length != 1)
+					throw new ParseException(String.format(TOO_MANY_OPTIONS, "k"));
+				strategy = DiskImageCompactPlan.strategyOf(cmd.getOptionValue("k"));
+				if (strategy == -1)
+					throw new ParseException(INCORRECT_COMMAND);
+			}
+			
+			if (cmd.hasOption("a")) {
+				for (String phase: cmd.getOptionValues("a")) {
+					int a = DiskImage.adviceOf(phase);
+					if (a == -1)
+						throw new ParseException(INCORRECT_COMMAND);
+					advice |= a;
+				}
+				verboseProgress("Cache advice: "+DiskImage.adviceName(advice));
+			}
+			
+			if (cmd.hasOption("t")) {
+				threads = getPositiveInt(cmd, "t");
+			}
+			
+			if (cmd.hasOption("q")) {
+				depth = getPositiveInt(cmd, "q");
+			}
+			
+			if (cmd.hasOption("p")) {
+				readers = getPositiveInt(cmd, "p");
+			}
+			
+			if (cmd.hasOption("b")) {
+				budget = (long)getPositiveInt(cmd, "b") << 20;
+			}
+			
+			if (cmd.hasOption("bitmap-memory")) {
+				AllocationBitmap.setMemoryLimit((long)getPositiveInt(cmd, "bitmap-memory") << 20);
+			}
+			
+			if (cmd.hasOption("s")) {
+				order = DiskImage.COPY_FILE_ORDER;
+			}
+			
+			if (cmd.hasOption("x")) {
+				direct = true;
+			}
+			
+			if (cmd.hasOption("n")) {
+				preallocate = false;
+			}
+			
+			if (cmd.hasOption("no-transfer")) {
+				transfer = false;
+			}
+			
+			if (cmd.hasOption("host-holes")) {
+				holes = true;
+			}
+			
 			if (cmd.hasOption("c")) {
 				if (!cmd.hasOption("w"))
 					throw new ParseException(INCORRECT_COMMAND);
@@ -345,6 +514,11 @@ public class CompactVD implements DiskImageObserver {
 				return;
 			}
 			
+			if (cmd.hasOption("map")) {
+				showMap(getOptionValues(cmd, "map"));
+				return;
+			}
+			
 		} catch (ParseException | IOException e) {
 			printHelp(options);
 			System.out.println("\n\n"+Static.simpleString(e));
@@ -363,7 +537,7 @@ public class CompactVD implements DiskImageObserver {
 		formatter.setSyntaxPrefix("Usage: ");
 		final String prefix = "--";
 		String header = "\nTo reduce the size of dynamic disk images. Version "+version+"\n\n";
-		String footer = ("\nOne of ^inplace, ^copy or ^dump is required. For ^inplace and ^dump"
+		String footer = ("\nOne of ^inplace, ^copy, ^dump or ^map is required. For ^inplace and ^dump"
 				+ " the default options are ^drop-unused ^keep-zeroed. For ^copy the default"
 				+ " is ^drop-unused and ^drop-zeroed is implied. Options with parameters"
 				+ " are entirely the user's responsibility.\n").replace("^", prefix);
@@ -204,6 +204,7 @@ class ListItem {
 				
 				case DiskImageProgress.OPTIMIZE:
 					try (DiskImage image = DiskImages.open(view.imageType, file, "r")) {
+						image.setScanThreads(app.settings.scanThreads);
 						image.addObserver(this, true);
 						image.optimize(lastViewOptions);
 						image.removeObserver(this);
@@ -217,11 +218,13 @@ class ListItem {
 					try (RandomAccessFile check = new RandomAccessFile(file, "r")) { // still exists?
 						try (DiskImage image = DiskImages.open(view.imageType, file, "rw")) {
 							FileLock fileLock = image.tryLock();
+							image.setScanThreads(app.settings.scanThreads);
 							image.addObserver(this, false);
 							image.optimize(lastViewOptions);
 							image.removeObserver(this);
 							if (!isCancelled()) {
 								progressString = String.format(app.res.getString("compacting"), file.getName());
+								image.setCompactStrategy(app.settings.compactStrategy);
 								image.addObserver(this, true);
 								image.compact();
 								image.removeObserver(this);
@@ -248,6 +251,7 @@ class ListItem {
 								FileLock source = null, fileLock = null;
 								if (CompactVD.macVolumes(file) && mode.equals("rw"))
 									source = image.tryLock();
+								image.setScanThreads(app.settings.scanThreads);
 								image.addObserver(this, false);
 								image.optimize(lastViewOptions);
 								image.removeObserver(this);
@@ -28,6 +28,7 @@ import java.io.Serializable;
 import java.util.Locale;
 
 import io.github.eternalbits.compactvd.Static;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 
 /**
  * FrontEnd window geometry and current settings are saved
@@ -61,6 +62,10 @@ class Settings implements Serializable {
 	boolean ignoreBlocksNotInUse = true;
 	boolean ignoreBlocksZeroed = false;
 	
+	// Performance options
+	int scanThreads = 1;
+	int compactStrategy = DiskImageCompactPlan.MINIMAL_MOVES;
+	
 	/**
 	 * Writes the FrontEnd geometry and current settings.
 	 */
@@ -30,6 +30,8 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
 
@@ -49,6 +51,9 @@ class SettingsDialog extends JDialog {
 	private final JCheckBox ignoreBlocksNotInUse;
 	private final JCheckBox ignoreBlocksZeroed;
 	
+	private final JSpinner scanThreads;
+	private final JComboBox<String> compactStrategy;
+	
 	static private final Language[] languages = new Language[] {
 			new Language("zh", "CN", "简体中文"), 
 			new Language("en", "US", "English"), 
@@ -124,6 +129,23 @@ class SettingsDialog extends JDialog {
 		copy.add(ignoreBlocksNotInUse = new JCheckBox(app.res.getString("set_ignore_unused"), app.settings.ignoreBlocksNotInUse));
 		copy.add(ignoreBlocksZeroed   = new JCheckBox(app.res.getString("set_ignore_zeroed"), app.settings.ignoreBlocksZeroed));
 		
+		Box performance = Box.createVerticalBox();
+		performance.setBorder(new TitledBorder(boxBorder, app.res.getString("set_performance")));
+		Box threads = Box.createHorizontalBox();
+		threads.add(new JLabel(app.res.getString("set_scan_threads")));
+		threads.add(Box.createHorizontalGlue());
+		int maxThreads = Math.max(Runtime.getRuntime().availableProcessors() * 2, app.settings.scanThreads);
+		threads.add(scanThreads = new JSpinner(new SpinnerNumberModel(Math.max(1, app.settings.scanThreads), 1, maxThreads, 1)));
+		performance.add(threads);
+		Box strategy = Box.createHorizontalBox();
+		strategy.add(new JLabel(app.res.getString("set_compact_strategy")));
+		strategy.add(Box.createHorizontalGlue());
+		strategy.add(compactStrategy = new JComboBox<String>(new String[] {app.res.getString("set_strategy_minimal"),
+				app.res.getString("set_strategy_ordered"), app.res.getString("set_strategy_defrag"),
+				app.res.getString("set_strategy_punch")}));
+		compactStrategy.setSelectedIndex(Math.max(0, Math.min(app.settings.compactStrategy, compactStrategy.getItemCount() - 1)));
+		performance.add(strategy);
+		
 		Box cmd = Box.createHorizontalBox();
 		JButton apply = new JButton(app.res.getString("apply_text"));
 		JButton cancel = new JButton(app.res.getString("cancel_text"));
@@ -162,6 +184,8 @@ class SettingsDialog extends JDialog {
 					app.settings.ignoreBlocksNotInUse 	= ignoreBlocksNotInUse.isSelected();
 					app.settings.ignoreBlocksZeroed 	= ignoreBlocksZeroed.isSelected();
 				}
+				app.settings.scanThreads 			= (Integer)scanThreads.getValue();
+				app.settings.compactStrategy 		= compactStrategy.getSelectedIndex();
 				dispose();
 			}
 		});
@@ -180,6 +204,7 @@ class SettingsDialog extends JDialog {
 		getContentPane().add(open, gbc);
 		getContentPane().add(compact, gbc);
 		getContentPane().add(copy, gbc);
+		getContentPane().add(performance, gbc);
 		getContentPane().add(cmd, gbc);
 		
 		compact.setVisible(!visibleCompactCopy.isSelected());
@@ -19,7 +19,9 @@ package io.github.eternalbits.darwin.disk.apfs;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
+import io.github.eternalbits.disk.AllocationBitmap;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
 import io.github.eternalbits.disk.InitializationException;
@@ -31,6 +33,7 @@ public class ApfsFileSystem extends DiskFileSystem { // https://developer.apple.
 	
 	final ApfsVolumeHeader header;
 	ApfsSpacemanPhys spaceman;
+	final AllocationBitmap bitmap;
 
 	public ApfsFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -57,6 +60,24 @@ public class ApfsFileSystem extends DiskFileSystem { // https://developer.apple.
 		}
 		if (spaceman == null)
 			throw new InitializationException("A troubled Spaceman was found");
+		bitmap = new AllocationBitmap(layout.getImage(), 0, header.nx_block_size, header.nx_block_count, header.nx_block_size, false) {
+			@Override
+			protected long locate(long from) throws IOException {
+				long readNumber = spaceman.getSpaceman(from);
+				return readNumber > 0? diskOffset + readNumber * header.nx_block_size + from % header.nx_block_size: -1;
+			}
+			@Override
+			protected void fill(long from, byte[] buffer, int start, int length) {
+			// A 0x0 byte is a normal situation to occur. As for byte 0xff it is impossible 
+			//	to happen, unless the spaceman has been read incorrectly. 
+				byte ins = (byte)0xff;
+				try {
+					if (spaceman.getSpaceman(from) == 0)
+						ins = (byte)0x0;
+				} catch (IOException e) {}
+				Arrays.fill(buffer, start, start + length, ins);
+			}
+		};
 	}
 	
 	@Override
@@ -92,15 +113,8 @@ public class ApfsFileSystem extends DiskFileSystem { // https://developer.apple.
         return sum;	// The return (sum << 32) | check is wrong!
     }
     
-	private final byte[] leaveMask = new byte[] {(byte)0xFF, 0x1, 0x3, 0x7, 0x0F, 0x1F, 0x3F, 0x7F};
-	private final byte[] enterMask = new byte[] {(byte)0xFF, (byte)0xFE, (byte)0xFC, (byte)0xF8, 
-			(byte)0xF0, (byte)0xE0, (byte)0xC0, (byte)0x80};
-	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		if (length == 0)
-			return false;
-		
+	public long findAllocated(long offset, long end) {
 		/* The allocation spaceman is used to keep track of whether each allocation block 
 		 * 	in a volume is currently allocated to some file system structure or not. The 
 		 * 	contents of the allocation file is a bitmap. The bitmap contains one bit for 
@@ -110,50 +124,17 @@ public class ApfsFileSystem extends DiskFileSystem { // https://developer.apple.
 		 * The first data block is represented by the least significant bit of the first byte
 		 *  in the bitmap.
 		 */
-		long firstBlock = offset / header.nx_block_size;						// First block to check
-		long lastBlock = (offset + length - 1) / header.nx_block_size;			// Last block to check
-		if (firstBlock < 0 || lastBlock >= header.nx_block_count)				// Is block range valid?
-			return true;
-		
-		long firstByte = firstBlock / 8;										// First byte to read
-		long lastByte = lastBlock / 8;											// Last byte to read
-		byte firstMask = enterMask[(int) (firstBlock % 8)];						// Bits to ignore in first byte
-		byte lastMask = leaveMask[(int) ((lastBlock + 1) % 8)];				 	// Bits to ignore in last byte
-		
-		try {
-			int want = (int) (lastByte - firstByte + 1), into = 0;
-			byte[] buffer = new byte[want];
-			long from = firstByte;
-			while (want > 0) {
-				long readNumber = spaceman.getSpaceman(from);
-				int readOffset = (int) (from % header.nx_block_size);
-				int read = Math.min(want, header.nx_block_size - readOffset);
-				if (readNumber > 0) { // Read the bitmap from disk image
-					read = layout.getImage().readAll(diskOffset + readNumber * header.nx_block_size 
-							+ readOffset, buffer, into, read);
-					if (read == -1) return true;
-				} else {
-				// A 0x0 byte is a normal situation to occur. As for byte 0xff it is impossible 
-				//	to happen, unless the spaceman has been read incorrectly. 
-					byte ins = readNumber == 0? (byte)0x0: (byte)0xff;
-					for (int i= into; i < into+read; i++) 
-						buffer[i] = ins;
-				}
-				want -= read;
-				from += read;
-				into += read;
-			}
-			
-			buffer[0] &= firstMask;
-			buffer[buffer.length -1] &= lastMask;
-			for (int i = 0; i < buffer.length; i++)
-				if (buffer[i] != 0)
-					return true;
-			return false;
-			
-		} catch (IOException e) {}
-		
-		return true;
+		return bitmap.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		return bitmap.findFree(offset, end);
+	}
+	
+	@Override
+	public void release() {
+		bitmap.release();
 	}
 
 }
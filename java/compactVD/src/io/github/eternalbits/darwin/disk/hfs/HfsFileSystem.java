@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import io.github.eternalbits.disk.AllocationBitmap;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
 import io.github.eternalbits.disk.WrongHeaderException;
@@ -28,6 +29,7 @@ public class HfsFileSystem extends DiskFileSystem { // https://developer.apple.c
 	static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
 	final HfsVolumeHeader header;
+	final AllocationBitmap bitmap;
 	
 	public HfsFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -35,6 +37,12 @@ public class HfsFileSystem extends DiskFileSystem { // https://developer.apple.c
 		this.diskLength = length;
 		
 		header = new HfsVolumeHeader(this, readImage(1024, HfsVolumeHeader.HEADER_SIZE));
+		bitmap = new AllocationBitmap(layout.getImage(), 0, header.blockSize, header.totalBlocks, header.blockSize, true) {
+			@Override
+			protected long locate(long from) throws IOException {
+				return diskOffset + header.allocationFile.getBlock(from) * (long)header.blockSize + from % header.blockSize;
+			}
+		};
 	}
 
 	@Override
@@ -53,15 +61,8 @@ public class HfsFileSystem extends DiskFileSystem { // https://developer.apple.c
 		return ByteBuffer.wrap(buffer, 0, read).order(BYTE_ORDER);
 	}
 	
-	private final byte[] enterMask = new byte[] {(byte)0xFF, 0x7F, 0x3F, 0x1F, 0xF, 0x7, 0x3, 0x1};
-	private final byte[] leaveMask = new byte[] {(byte)0xFF, (byte)0x80, (byte)0xC0, (byte)0xE0, 
-			(byte)0xF0, (byte)0xF8, (byte)0xFC, (byte)0xFE};
-	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		if (length == 0)
-			return false;
-		
+	public long findAllocated(long offset, long end) {
 		/* The allocation file is used to keep track of whether each allocation block 
 		 * 	in a volume is currently allocated to some file system structure or not. The 
 		 * 	contents of the allocation file is a bitmap. The bitmap contains one bit for 
@@ -71,42 +72,17 @@ public class HfsFileSystem extends DiskFileSystem { // https://developer.apple.c
 		 * The first data block is represented by the most significant bit of the first byte
 		 *  in the bitmap.
 		 */
-		int firstBlock = (int)(offset / header.blockSize);					// First block to check
-		int lastBlock = (int)((offset + length - 1) / header.blockSize);	// Last block to check
-		if (firstBlock < 0 || lastBlock >= header.totalBlocks)				// Is block range valid?
-			return true;
-		
-		int firstByte = firstBlock / 8;										// First byte to read
-		int lastByte = lastBlock / 8;										// Last byte to read
-		byte firstMask = enterMask[firstBlock % 8];							// Bits to ignore in first byte
-		byte lastMask = leaveMask[(lastBlock + 1) % 8];						// Bits to ignore in last byte
-		
-		try {
-			int want = lastByte - firstByte + 1, into = 0;
-			byte[] buffer = new byte[want];
-			int from = firstByte;
-			while (want > 0) {
-				int readNumber = header.allocationFile.getBlock(from);
-				int readOffset = from % header.blockSize;
-				int read = Math.min(want, header.blockSize - readOffset);
-				read = layout.getImage().readAll(diskOffset + readNumber * (long)header.blockSize 
-						+ readOffset, buffer, into, read);
-				if (read == -1) return true;
-				want -= read;
-				from += read;
-				into += read;
-			}
-			
-			buffer[0] &= firstMask;
-			buffer[buffer.length -1] &= lastMask;
-			for (int i = 0; i < buffer.length; i++)
-				if (buffer[i] != 0)
-					return true;
-			return false;
-			
-		} catch (IOException e) {}
-		
-		return true;
+		return bitmap.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		return bitmap.findFree(offset, end);
+	}
+	
+	@Override
+	public void release() {
+		bitmap.release();
 	}
 
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The allocation bitmap of a file system, loaded from the disk image in large reads
+ *  into words of 64 bits, where bit {@code i} of the bitmap is bit {@code i % 64} of
+ *  word {@code i / 64}. The bitmap is loaded on the first query, and range queries
+ *  are answered a word at a time.
+ * <p>
+ * Bit {@code i} is the allocation state of the {@code unit} bytes of the file system
+ *  that start at {@code origin + i * unit}. The bytes out of the bitmap are taken as
+ *  allocated by the byte queries.
+ * <p>
+ * The bitmap is stored in pieces of {@code pieceSize} bytes, each one located by the
+ *  file system with {@link #locate(long)}. Pieces adjacent in the image are read
+ *  together. A bitmap larger than {@link #getMemoryLimit()} is kept in a window of
+ *  that size, moved and loaded again when a query falls out of it, so the queries
+ *  in ascending order load each byte once.
+ * <p>
+ * Bytes that can not be read are taken as allocated.
+ */
+public abstract class AllocationBitmap {
+	private static final int READ_SIZE = 1 << 20;	// Bytes of the bitmap read at once
+
+	private static volatile long memoryLimit = 64L << 20;
+
+	private final DiskImage image;
+	private final long origin;			// The file system offset of the first bit
+	private final long unit;			// Bytes of the file system in each bit
+	private final long bits;			// Number of bits in the bitmap
+	private final int pieceSize;		// Bytes of the bitmap stored together
+	private final boolean reversed;		// The first bit is the most significant of each byte
+
+	private long[] words = null;
+	private long base = 0;				// The first word in words
+	private int count = 0;				// The number of words loaded
+
+	/**
+	 * Creates the bitmap of a file system, without reading it.
+	 *
+	 * @param image		The disk image of the file system.
+	 * @param origin	The offset in the file system of the bytes of the first bit.
+	 * @param unit		The number of bytes in each bit.
+	 * @param bits		The number of bits in the bitmap.
+	 * @param pieceSize	The number of bytes of the bitmap stored together.
+	 * @param reversed	True if the first bit is the most significant of each byte.
+	 */
+	protected AllocationBitmap(DiskImage image, long origin, long unit, long bits, int pieceSize, boolean reversed) {
+		this.image = image;
+		this.origin = origin;
+		this.unit = unit;
+		this.bits = bits;
+		this.pieceSize = pieceSize;
+		this.reversed = reversed;
+	}
+
+	/**
+	 * Sets the maximum number of bytes kept in memory by each bitmap. A larger bitmap
+	 *  is loaded in windows of this size.
+	 *
+	 * @param bytes	The limit, at least one read of {@value #READ_SIZE} bytes is kept.
+	 */
+	public static void setMemoryLimit(long bytes) {
+		memoryLimit = bytes;
+	}
+
+	public static long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Returns the offset in the disk image of byte {@code from} of the bitmap. The
+	 *  bytes up to the end of its piece follow it in the image.
+	 *
+	 * @param from	The byte of the bitmap, at the start or within a piece.
+	 * @return	The offset in the disk image, or a negative value if the bytes of
+	 * 			 the piece are not stored and are made by {@link #fill}.
+	 * @throws IOException if the byte can not be located.
+	 */
+	protected abstract long locate(long from) throws IOException;
+
+	/**
+	 * Makes the bytes of a piece that are not stored in the image. The default is
+	 *  all bits set, allocated.
+	 *
+	 * @param from		The first byte of the bitmap to make.
+	 * @param buffer	The array to fill.
+	 * @param start		The start offset in the array.
+	 * @param length	The number of bytes, all in the same piece.
+	 */
+	protected void fill(long from, byte[] buffer, int start, int length) {
+		Arrays.fill(buffer, start, start + length, (byte)0xFF);
+	}
+
+	/**
+	 * Returns the number of bits in the bitmap.
+	 *
+	 * @return	The number of allocation blocks of the file system.
+	 */
+	public long getBits() {
+		return bits;
+	}
+
+	/**
+	 * Returns the first bit set from {@code from}, inclusive, to {@code to}, exclusive.
+	 *
+	 * @param from	The first bit to check.
+	 * @param to	The bit after the last bit to check.
+	 * @return	The first bit set, or {@code -1} if all bits in the range are clear.
+	 */
+	public synchronized long nextSetBit(long from, long to) {
+		if (from >= to)
+			return -1;
+		long first = from >>> 6, last = (to - 1) >>> 6;
+		for (long w = first; w <= last; w++) {
+			long word = word(w);
+			if (w == first)
+				word &= -1L << (from & 63);
+			if (w == last)
+				word &= -1L >>> (63 - ((to - 1) & 63));
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first bit clear from {@code from}, inclusive, to {@code to}, exclusive.
+	 *
+	 * @param from	The first bit to check.
+	 * @param to	The bit after the last bit to check.
+	 * @return	The first bit clear, or {@code -1} if all bits in the range are set.
+	 */
+	public synchronized long nextClearBit(long from, long to) {
+		if (from >= to)
+			return -1;
+		long first = from >>> 6, last = (to - 1) >>> 6;
+		for (long w = first; w <= last; w++) {
+			long word = ~word(w);
+			if (w == first)
+				word &= -1L << (from & 63);
+			if (w == last)
+				word &= -1L >>> (63 - ((to - 1) & 63));
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first byte from {@code from} to {@code end} that is in use by the
+	 *  file system, as told by {@link DiskFileSystem#findAllocated(long, long)}.
+	 *
+	 * @param from	The offset in the file system of the first byte to check.
+	 * @param end	The offset after the last byte to check.
+	 * @return	The first byte allocated, or {@code end} if there is none.
+	 */
+	public long findAllocated(long from, long end) {
+		if (from >= end || from < origin)
+			return Math.min(from, end);
+		long first = (from - origin) / unit;
+		if (first >= bits)
+			return from;
+		long last = Math.min(bits, (end - origin + unit - 1) / unit);
+		long bit = nextSetBit(first, last);
+		if (bit >= 0)
+			return Math.max(from, origin + bit * unit);
+		return Math.min(end, origin + last * unit);
+	}
+
+	/**
+	 * Returns the first byte from {@code from} to {@code end} that is not in use by the
+	 *  file system, as told by {@link DiskFileSystem#findFree(long, long)}.
+	 *
+	 * @param from	The offset in the file system of the first byte to check.
+	 * @param end	The offset after the last byte to check.
+	 * @return	The first byte not allocated, or {@code end} if there is none.
+	 */
+	public long findFree(long from, long end) {
+		from = Math.max(from, origin);
+		if (from >= end)
+			return end;
+		long first = (from - origin) / unit;
+		if (first >= bits)
+			return end;
+		long last = Math.min(bits, (end - origin + unit - 1) / unit);
+		long bit = nextClearBit(first, last);
+		return bit >= 0? Math.max(from, origin + bit * unit): end;
+	}
+
+	/**
+	 * Drops the words loaded. The next query loads them again.
+	 */
+	public synchronized void release() {
+		words = null;
+		count = 0;
+	}
+
+	private long word(long w) {
+		if (words == null || w < base || w >= base + count)
+			load(w);
+		return words[(int)(w - base)];
+	}
+
+	/* Loads the window of words that starts at word w, up to the memory limit.
+	 */
+	private void load(long w) {
+		long total = (bits + 63) >>> 6;
+		long window = Math.max(READ_SIZE / 8, memoryLimit / 8);
+		count = (int)Math.min(Math.min(total - w, window), Integer.MAX_VALUE - 8);
+		if (words == null || words.length < count)
+			words = new long[count];
+		base = w;
+
+		long end = (bits + 7) >>> 3;
+		byte[] buffer = BufferPool.take(READ_SIZE);
+		try {
+			for (int i = 0; i < count; ) {
+				long from = (base + i) * 8;
+				int want = (int)Math.min(Math.min(READ_SIZE, (long)(count - i) * 8), end - from);
+				readBitmap(from, buffer, want);
+				int round = (want + 7) & ~7;
+				Arrays.fill(buffer, want, round, (byte)0);
+				ByteBuffer in = ByteBuffer.wrap(buffer, 0, round)
+						.order(reversed? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN);
+				while (in.hasRemaining()) {
+					long word = in.getLong();
+					words[i++] = reversed? Long.reverse(word): word;
+				}
+			}
+		} finally {
+			BufferPool.give(buffer);
+		}
+	}
+
+	/* Reads want bytes of the bitmap starting at byte from, with one read for
+	 *  each run of pieces that are adjacent in the image.
+	 */
+	private void readBitmap(long from, byte[] buffer, int want) {
+		long runAt = -1;
+		int runStart = 0, runLength = 0;
+		for (int into = 0; into < want; ) {
+			int length = (int)Math.min(want - into, pieceSize - from % pieceSize);
+			long at;
+			boolean located = true;
+			try {
+				at = locate(from);
+			} catch (IOException e) {
+				at = -1;
+				located = false;
+			}
+			if (runAt >= 0 && at == runAt + runLength) {
+				runLength += length;
+			} else {
+				readRun(runAt, buffer, runStart, runLength);
+				runAt = at;
+				runStart = into;
+				runLength = length;
+				if (!located)
+					Arrays.fill(buffer, into, into + length, (byte)0xFF);
+				else if (at < 0)
+					fill(from, buffer, into, length);
+			}
+			from += length;
+			into += length;
+		}
+		readRun(runAt, buffer, runStart, runLength);
+	}
+
+	private void readRun(long at, byte[] buffer, int start, int length) {
+		if (at < 0 || length == 0)
+			return;
+		int read;
+		try {
+			read = image.readAll(at, buffer, start, length);
+		} catch (IOException e) {
+			read = 0;
+		}
+		read = Math.max(read, 0);
+		Arrays.fill(buffer, start + read, start + length, (byte)0xFF);
+	}
+
+}
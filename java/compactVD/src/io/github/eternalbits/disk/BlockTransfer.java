@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies image blocks from the source image file to the target image file with
+ *  {@link FileChannel#transferTo}. The kernel copies the data from file to file,
+ *  without the Java heap, and some file systems share or copy the extents on the
+ *  server side.
+ * <p>
+ * The block table of the target places each block with
+ *  {@link DiskImageBlockTable#allocate(int)}, and the block is transferred there by
+ *  {@link DiskImage#transferBlock}. The channels are not the image file channels,
+ *  and are reopened if a thread is interrupted in the middle of a transfer, as done
+ *  by {@link FileChannelMedia}.
+ */
+class BlockTransfer implements AutoCloseable {
+	private final File source;
+	private final File target;
+	private FileChannel from;
+	private FileChannel to;
+
+	private BlockTransfer(File target, File source) throws IOException {
+		this.source = source;
+		this.target = target;
+		openChannels();
+	}
+
+	/**
+	 * Opens {@code target} for blocks transferred from {@code source}.
+	 *
+	 * @param target	The image file to write, that must exist.
+	 * @param source	The image file to read.
+	 * @return	The transfer, or {@code null} if the files can not be open.
+	 */
+	static BlockTransfer open(File target, File source) {
+		try {
+			return new BlockTransfer(target, source);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void openChannels() throws IOException {
+		closeChannels();
+		from = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+		to = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+	}
+
+	private void closeChannels() throws IOException {
+		try {
+			if (from != null) from.close();
+		} finally {
+			if (to != null) to.close();
+		}
+	}
+
+	/**
+	 * Copies {@code length} bytes of the source file, starting at {@code position},
+	 *  to the target file at {@code at}.
+	 *
+	 * @param position	The position of the data in the source file.
+	 * @param at		The position of the data in the target file.
+	 * @param length	The number of bytes.
+	 * @throws IOException if some I/O error occurs.
+	 */
+	void transfer(long position, long at, int length) throws IOException {
+		try {
+			copy(position, at, length);
+		} catch (ClosedByInterruptException e) {
+			boolean interrupted = Thread.interrupted();
+			try {
+				openChannels();
+				copy(position, at, length);
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void copy(long position, long at, int length) throws IOException {
+		for (long done = 0; done < length; ) {
+			long some = from.transferTo(position + done, length - done, to.position(at + done));
+			if (some <= 0)
+				throw new EOFException(source.getPath());
+			done += some;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeChannels();
+	}
+
+}
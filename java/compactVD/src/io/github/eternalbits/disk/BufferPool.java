@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of buffers shared by all disk images, file systems and tasks. The buffers
+ *  of the image blocks, of the block moves and of the allocation bitmaps are taken
+ *  here and given back when done, so that a task in steady state allocates nothing,
+ *  and several tasks at once reuse the same memory.
+ * <p>
+ * The buffers are arrays of the exact size asked. The buffers given back are kept up
+ *  to a total of {@link #getBudget()} bytes, and the others are left to the garbage
+ *  collector. A buffer must not be used after it is given back.
+ * <p>
+ * The budget caps only the idle buffers, kept in the pool for reuse. The buffers
+ *  taken and not given back yet are not counted, and {@link #take(int)} allocates a
+ *  new one whenever the pool has none of the size asked, so the memory in use by the
+ *  tasks is not limited by the pool.
+ */
+public class BufferPool {
+
+	private static final Map<Integer, ConcurrentLinkedDeque<byte[]>> free = new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<byte[]>>();
+	private static final AtomicLong kept = new AtomicLong();
+	private static volatile long budget = 64L << 20;
+
+	/**
+	 * Sets the maximum number of bytes kept by the pool for reuse.
+	 *
+	 * @param bytes	The budget, zero to keep nothing.
+	 */
+	public static void setBudget(long bytes) {
+		budget = Math.max(0, bytes);
+		while (kept.get() > budget && dropOne()) {}
+	}
+
+	public static long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the number of bytes kept by the pool now.
+	 *
+	 * @return	The bytes in the buffers waiting for reuse.
+	 */
+	public static long getKept() {
+		return kept.get();
+	}
+
+	/**
+	 * Takes a buffer of {@code size} bytes from the pool, or a new one if there is none.
+	 *  The content of a buffer reused is not defined.
+	 *
+	 * @param size	The length of the buffer.
+	 * @return	The buffer.
+	 */
+	public static byte[] take(int size) {
+		ConcurrentLinkedDeque<byte[]> list = free.get(size);
+		byte[] buffer = list == null? null: list.pollFirst();
+		if (buffer == null)
+			return new byte[size];
+		kept.addAndGet(-size);
+		return buffer;
+	}
+
+	/**
+	 * Takes a buffer of {@code size} bytes filled with zeros.
+	 *
+	 * @param size	The length of the buffer.
+	 * @return	The buffer.
+	 */
+	public static byte[] takeZeroed(int size) {
+		byte[] buffer = take(size);
+		Arrays.fill(buffer, (byte)0);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer is kept if the budget allows it.
+	 *
+	 * @param buffer	The buffer, or {@code null}.
+	 */
+	public static void give(byte[] buffer) {
+		if (buffer == null || buffer.length == 0)
+			return;
+		if (kept.addAndGet(buffer.length) > budget) {
+			kept.addAndGet(-buffer.length);
+			return;
+		}
+		ConcurrentLinkedDeque<byte[]> list = free.get(buffer.length);
+		if (list == null) {
+			free.putIfAbsent(buffer.length, new ConcurrentLinkedDeque<byte[]>());
+			list = free.get(buffer.length);
+		}
+		list.addFirst(buffer);
+	}
+
+	private static boolean dropOne() {
+		for (ConcurrentLinkedDeque<byte[]> list: free.values()) {
+			byte[] buffer = list.pollLast();
+			if (buffer != null) {
+				kept.addAndGet(-buffer.length);
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
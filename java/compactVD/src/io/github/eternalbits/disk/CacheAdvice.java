@@ -0,0 +1,144 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells the host that the data of an image file read or written by a phase of a task
+ *  is not needed again, so that the host page cache keeps the data of other programs.
+ *  The workers of the phase share the advice and report the ranges they consume, which
+ *  only keeps the lowest offset. When the phase ends, the pages of the file from that
+ *  offset to the end of file are dropped with {@code POSIX_FADV_DONTNEED}, one hint for
+ *  the file.
+ * <p>
+ * The Java runtime has no call for this, so the {@code dd} command of GNU coreutils
+ *  is run with the {@code nocache} flag and a count of zero: it calls {@code posix_fadvise}
+ *  from its position to the end of file, and reads or writes nothing. A hint can not end
+ *  before the end of file, so no hint is given while the workers run, as it would drop
+ *  the pages that other workers have yet to consume. Written data is synced first by
+ *  the same command, otherwise the dirty pages can not be dropped. This only works on
+ *  Linux hosts.
+ * <p>
+ * {@code DONTNEED} is the only advice given. {@code dd} has no flag for {@code SEQUENTIAL}
+ *  or {@code WILLNEED}, and no other command gives them, so these hints are left to the
+ *  kernel readahead, that already serves the sequential sweeps, and to the read pipeline
+ *  of the copy, that reads the next blocks ahead.
+ */
+public class CacheAdvice {
+	private static final String DD = "dd";
+
+	private static volatile Boolean supported = null;
+
+	private final File file;
+	private final AtomicInteger hints;
+
+	private final AtomicLong read = new AtomicLong(Long.MAX_VALUE);		// The first byte read
+	private final AtomicLong written = new AtomicLong(Long.MAX_VALUE);	// The first byte written
+
+	private CacheAdvice(File file, AtomicInteger hints) {
+		this.file = file;
+		this.hints = hints;
+	}
+
+	/**
+	 * Returns the cache advice for a phase of a task on {@code file}.
+	 *
+	 * @param file	The image file.
+	 * @param hints	Counts the hints given.
+	 * @return	The advice, or {@code null} if the host does not support it.
+	 */
+	public static CacheAdvice open(File file, AtomicInteger hints) {
+		if (supported == null) {
+			boolean linux = System.getProperty("os.name").toLowerCase().startsWith("linux");
+			supported = linux && run(DD, "if=/dev/null", "of=/dev/null", "iflag=nocache", "count=0");
+		}
+		return supported? new CacheAdvice(file, hints): null;
+	}
+
+	/**
+	 * Reports a range read by the phase. Nothing else is done until {@link #end()}.
+	 *
+	 * @param offset	The start of the range, in bytes.
+	 * @param length	The length of the range, in bytes.
+	 */
+	public void read(long offset, long length) {
+		if (length > 0)
+			lower(read, offset);
+	}
+
+	/**
+	 * Reports a range written by the phase. Nothing else is done until {@link #end()}.
+	 *
+	 * @param offset	The start of the range, in bytes.
+	 * @param length	The length of the range, in bytes.
+	 */
+	public void written(long offset, long length) {
+		if (length > 0)
+			lower(written, offset);
+	}
+
+	/**
+	 * Drops the pages consumed when the phase ends, after all its workers.
+	 */
+	public void end() {
+		long from = read.getAndSet(Long.MAX_VALUE);
+		if (from != Long.MAX_VALUE)
+			hint(DD, "if="+file.getPath(), "iflag=nocache,skip_bytes", "skip="+from, "count=0");
+		from = written.getAndSet(Long.MAX_VALUE);
+		if (from != Long.MAX_VALUE)
+			hint(DD, "if=/dev/null", "of="+file.getPath(), "oflag=nocache,seek_bytes", "conv=notrunc,fdatasync",
+					"seek="+from, "count=0");
+	}
+
+	private static void lower(AtomicLong first, long offset) {
+		for (long now = first.get(); offset < now && !first.compareAndSet(now, offset); now = first.get()) {}
+	}
+
+	private void hint(String... command) {
+		if (run(command))
+			hints.incrementAndGet();
+	}
+
+	/* A hint that fails is ignored, the data is only kept in the cache.
+	 */
+	private static boolean run(String... command) {
+		try {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					process.waitFor();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return process.exitValue() == 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+}
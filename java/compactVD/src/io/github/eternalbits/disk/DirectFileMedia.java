@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * A {@link DiskImageMedia} that reads with direct I/O, around the host page cache.
+ *  A scan or a copy of a large image reads it once, and does not evict the cache
+ *  of other programs.
+ * <p>
+ * Each read is widened to the block size of the file store, read into an aligned
+ *  direct buffer of the calling thread, and copied to the caller. Writes, and reads
+ *  when the host does not support direct I/O, are made by a {@link FileChannelMedia}.
+ *  The channel is reopened after an interrupt, in the same way.
+ */
+class DirectFileMedia extends DiskImageMedia {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+	private final FileChannelMedia fallback;
+	private final int align;
+	private volatile FileChannel channel;
+
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE + align).alignedSlice(align);
+		}
+	};
+
+	DirectFileMedia(DiskImage image, File file, String mode) throws IOException {
+		this.file = file;
+		fallback = new FileChannelMedia(image, file, mode);
+		long size = Files.getFileStore(file.toPath()).getBlockSize();
+		align = size > 0 && size <= BUFFER_SIZE && Long.bitCount(size) == 1? (int)size: 0;
+		channel = align == 0? null: openChannel();
+	}
+
+	private FileChannel openChannel() {
+		try {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+		} catch (IOException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the direct channel, or {@code null} if the reads must be made by the fallback.
+	 */
+	private FileChannel getChannel() {
+		if (Thread.currentThread().isInterrupted())
+			return null;
+		FileChannel fc = channel;
+		if (fc != null && !fc.isOpen()) {
+			synchronized (this) {
+				if (channel != null && !channel.isOpen())
+					channel = openChannel();
+				fc = channel;
+			}
+		}
+		return fc;
+	}
+
+	@Override
+	public int read(long position, byte[] in, int start, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		FileChannel fc = getChannel();
+		if (fc == null)
+			return fallback.read(position, in, start, length);
+
+		ByteBuffer bb = buffers.get();
+		int read = 0;
+		try {
+			while (read < length) {
+				long from = position + read;
+				long base = from - from % align;
+				long last = from + length - read;
+				bb.clear();
+				bb.limit((int)Math.min(bb.capacity(), (last + align - 1) / align * align - base));
+				int got = 0;
+				for (int n; bb.hasRemaining() && got % align == 0 && (n = fc.read(bb, base + got)) > 0; )
+					got += n; // a read that is not aligned ends at the end of file
+				int skip = (int)(from - base);
+				if (got <= skip)
+					break; // end of file
+				int max = Math.min(length - read, got - skip);
+				bb.get(skip, in, start + read, max);
+				read += max;
+				if (bb.hasRemaining())
+					break;
+			}
+		} catch (ClosedChannelException e) {
+			if (read == 0)
+				return fallback.read(position, in, start, length);
+		}
+		return read == 0? -1: read;
+	}
+
+	@Override
+	public void write(long position, byte[] out, int start, int length) throws IOException {
+		fallback.write(position, out, start, length);
+	}
+
+	@Override
+	public int getType() {
+		return DIRECT_READ;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		} finally {
+			fallback.close();
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * A {@link DiskImageMedia} that writes the image data with direct I/O, around the
+ *  host page cache. A large copy does not evict the cache of other programs, and
+ *  the data written is not kept in memory. It is the data writer of a copy, set by
+ *  {@link DiskImage#copyBlocks}: the image metadata is still written through the
+ *  image {@code RandomAccessFile}.
+ * <p>
+ * Direct I/O needs the file position, the length and the memory address aligned to
+ *  the block size of the file store. The aligned part of each write is copied to an
+ *  aligned direct buffer, reused by all writes, and written on a channel opened with
+ *  {@link ExtendedOpenOption#DIRECT}. The rest, such as a VHD block that starts after
+ *  its sector bitmap, is written on a plain channel. The kernel keeps both coherent.
+ */
+class DirectWriteMedia extends DiskImageMedia {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel direct;
+	private final FileChannel plain;
+	private final ByteBuffer buffer;
+	private final int align;
+
+	private DirectWriteMedia(FileChannel direct, FileChannel plain, int align) {
+		this.direct = direct;
+		this.plain = plain;
+		this.align = align;
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE + align).alignedSlice(align);
+	}
+
+	/**
+	 * Opens {@code file} for direct writes.
+	 *
+	 * @param file	The image file, that must exist.
+	 * @return	The media, or {@code null} if the host does not support direct I/O on it.
+	 */
+	static DirectWriteMedia open(File file) {
+		FileChannel direct = null;
+		try {
+			long align = Files.getFileStore(file.toPath()).getBlockSize();
+			if (align <= 0 || align > BUFFER_SIZE || Long.bitCount(align) != 1)
+				return null;
+			direct = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+			FileChannel plain = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return new DirectWriteMedia(direct, plain, (int)align);
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			if (direct != null) {
+				try { direct.close(); } catch (IOException x) {}
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public int read(long position, byte[] in, int start, int length) throws IOException {
+		return plain.read(ByteBuffer.wrap(in, start, length), position);
+	}
+
+	@Override
+	public void write(long position, byte[] out, int start, int length) throws IOException {
+		int head = (int)Math.min(length, (align - position % align) % align);
+		int body = (length - head) / align * align;
+		if (head > 0)
+			writePlain(position, out, start, head);
+		for (int done = head; done < head + body; ) {
+			int max = Math.min(head + body - done, buffer.capacity());
+			buffer.clear();
+			buffer.put(out, start + done, max);
+			buffer.flip();
+			while (buffer.hasRemaining())
+				direct.write(buffer, position + done + buffer.position());
+			done += max;
+		}
+		if (head + body < length)
+			writePlain(position + head + body, out, start + head + body, length - head - body);
+	}
+
+	private void writePlain(long position, byte[] out, int start, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(out, start, length);
+		while (bb.hasRemaining())
+			plain.write(bb, position + bb.position() - start);
+	}
+
+	@Override
+	public int getType() {
+		return DIRECT_WRITE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			direct.close();
+		} finally {
+			plain.close();
+		}
+	}
+
+}
@@ -16,8 +16,29 @@
 
 package io.github.eternalbits.disk;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 public abstract class DiskFileSystem {
 	
+	/**
+	 * A range of bytes of the file system, all allocated or all free.
+	 */
+	public static class Extent {
+		public final long offset;
+		public final long length;
+		
+		Extent(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d+%d", offset, length);
+		}
+	}
+	
 	protected DiskLayout layout = null;
 	protected long diskOffset = 0;
 	protected long diskLength = 0;
@@ -25,18 +46,96 @@ public abstract class DiskFileSystem {
 	public abstract String getType();
 	public abstract String getDescription();
 	
+	/**
+	 * Finds the first byte from {@code offset} to {@code end} that is allocated by
+	 * 	the file system. Typical file systems have a bitmap to track allocated blocks,
+	 * 	where one bit represents a file system block, and a byte is allocated if its
+	 * 	block is. Bytes not covered by the file system bitmap are allocated. The
+	 * 	default implementation, for file systems without a bitmap, finds {@code offset}.
+	 * 
+	 * @param	offset	The address of the first byte to check.
+	 * @param	end		The address after the last byte to check.
+	 * @return	The address of the first byte allocated, or {@code end} if there is none.
+	 */
+	public long findAllocated(long offset, long end) {
+		return Math.min(offset, end);
+	}
+	
+	/**
+	 * Finds the first byte from {@code offset} to {@code end} that is not allocated by
+	 * 	the file system. The default implementation finds {@code end}.
+	 * 
+	 * @param	offset	The address of the first byte to check.
+	 * @param	end		The address after the last byte to check.
+	 * @return	The address of the first byte not allocated, or {@code end} if there is none.
+	 */
+	public long findFree(long offset, long end) {
+		return end;
+	}
+	
 	/**
 	 * Checks the file system allocation status of {@code length} bytes starting at 
-	 * 	{@code offset}. Typical file systems have a bitmap to track allocated blocks,
-	 * 	where one bit represents a file system block. If the area checked is not 
-	 * 	completely covered by the file system bitmap, true is returned.
+	 * 	{@code offset}. If the area checked is not completely covered by the file 
+	 * 	system bitmap, true is returned.
 	 * 
 	 * @param	offset	The address of the first byte to check.
 	 * @param	length	The number of bytes to check.
 	 * @return	true if at least one byte checked is allocated by the file system, false otherwise.
 	 */
-	public abstract boolean isAllocated(long offset, long length);
+	public boolean isAllocated(long offset, long length) {
+		return length > 0 && findAllocated(offset, offset + length) < offset + length;
+	}
+	
+	/**
+	 * Returns the extents allocated, or the extents free, in {@code length} bytes
+	 * 	starting at {@code offset}, in ascending order. Each extent is found when the
+	 * 	iterator gets to it, and adjacent extents are never of the same kind, so the 
+	 * 	work grows with the number of extents, not with the length checked.
+	 * 
+	 * @param	offset		The address of the first byte to check.
+	 * @param	length		The number of bytes to check.
+	 * @param	allocated	True for the extents allocated, false for the extents free.
+	 * @return	The extents, clipped to the range checked.
+	 */
+	public Iterable<Extent> getExtents(final long offset, long length, final boolean allocated) {
+		final long end = offset + length;
+		return new Iterable<Extent>() {
+			@Override
+			public Iterator<Extent> iterator() {
+				return new Iterator<Extent>() {
+					private long next = offset;
+					private Extent extent = null;
+					
+					@Override
+					public boolean hasNext() {
+						if (extent == null && next < end) {
+							long start = allocated? findAllocated(next, end): findFree(next, end);
+							next = allocated? findFree(start, end): findAllocated(start, end);
+							if (start < next)
+								extent = new Extent(start, next - start);
+						}
+						return extent != null;
+					}
+					
+					@Override
+					public Extent next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						Extent found = extent;
+						extent = null;
+						return found;
+					}
+				};
+			}
+		};
+	}
 
+	/**
+	 * Drops the data loaded to answer the allocation queries, such as the allocation
+	 * 	bitmap. The next query loads it again. The default implementation does nothing.
+	 */
+	public void release() {}
+	
 	public long getOffset() {
 		return diskOffset;
 	}
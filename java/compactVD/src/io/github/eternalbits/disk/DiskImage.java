@@ -22,9 +22,18 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.github.eternalbits.compactvd.Static;
 
@@ -39,7 +48,9 @@ public abstract class DiskImage implements AutoCloseable {
 	
 	protected DiskImageBlockTable imageTable = null;
 	
-	protected RandomAccessFile media = null;// All inputs and outputs are done through a RandomAccessFile.
+	protected RandomAccessFile media = null;// Metadata outputs are done through a RandomAccessFile.
+	protected DiskImageMedia access = null;	// Data inputs and outputs are done through a DiskImageMedia.
+	private DiskImageMedia dataWriter = null;	// Writes the data blocks of a copy, instead of the media.
 	protected String path = null;			// Converts this abstract pathname into a pathname string.
 
 	protected long diskPointer = 0;			// The public disk pointer. Changed by seek, read and write.
@@ -54,6 +65,8 @@ public abstract class DiskImage implements AutoCloseable {
 	 */
 	Integer blocksUnused = null;
 	Integer blocksZeroed = null;
+	Integer blocksProbed = null;
+	Integer probeHits = null;
 	TreeMap<DiskFileSystem, FileSysData> blockView 
 	= new TreeMap<DiskFileSystem, FileSysData>(new Comparator<DiskFileSystem>() {
 		@Override
@@ -199,7 +212,9 @@ public abstract class DiskImage implements AutoCloseable {
 	 *  requested number of bytes are read or an impossibility is met.
 	 * <p>
 	 * The number of bytes actually read is returned as an integer. The current
-	 * pointer of the image data is not changed.
+	 * pointer of the image data is not changed. This method is not synchronized,
+	 * several threads can read at the same time if the image {@link DiskImageMedia}
+	 * allows it.
 	 * <p>
 	 * If {@code length} is zero, then no bytes are read and 0 is returned;
 	 *  otherwise, if {@code offset} is equal to or greater than the data size,
@@ -219,7 +234,7 @@ public abstract class DiskImage implements AutoCloseable {
 	 *			 if {@code offset} is at end of data.
 	 * @throws	IOException if some I/O error occurs.
 	 */
-	public synchronized int readAll(long offset, byte[] in, int start, int length) throws IOException {//
+	public int readAll(long offset, byte[] in, int start, int length) throws IOException {
 		if (length == 0)
 			return 0;
 		if (offset >= getDiskSize())
@@ -281,9 +296,8 @@ public abstract class DiskImage implements AutoCloseable {
 	}
 	
 	protected ByteBuffer readMetadata(long offset, int length) throws IOException {
-		media.seek(offset);
 		byte[] buffer = new byte[length];
-		int read = media.read(buffer, 0, length);
+		int read = access.read(offset, buffer, 0, length);
 		return ByteBuffer.wrap(buffer, 0, read < 0? 0: read);
 	}
 	
@@ -316,9 +330,7 @@ public abstract class DiskImage implements AutoCloseable {
 	}
 	
 	protected final static boolean isZero(byte[] buffer, int start, int length) {
-		for (int i = start, s = start + length; i < s; i++)
-			if (buffer[i] != 0) return false;
-		return true;
+		return ZeroDetector.getBest().isZero(buffer, start, length);
 	}
 
 	protected abstract void update() throws IOException;
@@ -342,11 +354,293 @@ public abstract class DiskImage implements AutoCloseable {
 	 */
 	public abstract boolean hasData(long offset, int length);
 	
+	/**
+	 * Returns the position in the image file where a range of the virtual disk device
+	 *  is stored in one piece, so that it can be copied from file to file.
+	 * 
+	 * @param offset	the offset position, measured in bytes from the
+	 *					 beginning of the virtual disk device.
+	 * @param length	the number of bytes in the range.
+	 * @return	the offset of the range in the image file, or {@code -1} if the range
+	 * 					is not mapped, or not stored in one piece.
+	 */
+	protected long getFileOffset(long offset, int length) {
+		return -1L;
+	}
+	
+	/**
+	 * A range of the virtual disk device that has data, stored in one piece in the
+	 *  image file.
+	 */
+	public static class MappedExtent {
+		public final long offset;		// The offset in the virtual disk device
+		public final long length;
+		public final long fileOffset;	// The offset in the image file, or -1 if not known
+		
+		MappedExtent(long offset, long length, long fileOffset) {
+			this.offset = offset;
+			this.length = length;
+			this.fileOffset = fileOffset;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d+%d@%d", offset, length, fileOffset);
+		}
+	}
+	
+	/**
+	 * Returns the ranges with data in {@code length} bytes of the virtual disk device
+	 *  starting at {@code offset}, in ascending order. Adjacent blocks are merged in
+	 *  one extent if they are also adjacent in the image file. The runs of blocks not
+	 *  mapped in the block table are skipped, so the work grows with the blocks mapped,
+	 *  not with the length checked. A mapped block has data as told by
+	 *  {@link #hasData(long, int)}, checked once, when the iterator gets to it.
+	 * 
+	 * @param offset	the offset position, measured in bytes from the
+	 *					 beginning of the virtual disk device.
+	 * @param length	the number of bytes to check.
+	 * @return	The extents with data, clipped to the range checked.
+	 */
+	public Iterable<MappedExtent> getMappedExtents(final long offset, long length) {
+		final long end = Math.min(offset + length, getDiskSize());
+		final int size = getImageBlockSize();
+		final int blocks = (int)Static.ceilDiv(end, size);
+		return new Iterable<MappedExtent>() {
+			@Override
+			public Iterator<MappedExtent> iterator() {
+				return new Iterator<MappedExtent>() {
+					private long next = Math.max(offset, 0);
+					private MappedExtent extent = null;
+					
+					@Override
+					public boolean hasNext() {
+						long start = -1, fileStart = -1, mapped = 0;
+						while (extent == null && next < end) {
+							long block = next / size;
+							if (imageTable != null && !imageTable.exists((int)block)) {
+								next = Math.min(end, (long)imageTable.nextMapped((int)block + 1, blocks) * size);
+								if (mapped > 0)
+									break;
+								continue;
+							}
+							long to = Math.min(end, (block + 1) * size);
+							if (!hasData(next, (int)(to - next))) {
+								next = to;
+								if (mapped > 0)
+									break;
+								continue;
+							}
+							long at = fileOffsetOf(block, next);
+							if (mapped > 0 && (at < 0? fileStart >= 0: at != fileStart + mapped))
+								break;
+							if (mapped == 0) {
+								start = next;
+								fileStart = at;
+							}
+							mapped += to - next;
+							next = to;
+						}
+						if (extent == null && mapped > 0)
+							extent = new MappedExtent(start, mapped, fileStart);
+						return extent != null;
+					}
+					
+					@Override
+					public MappedExtent next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						MappedExtent found = extent;
+						extent = null;
+						return found;
+					}
+				};
+			}
+		};
+	}
+	
+	/* The position in the image file of byte offset, in the image block number block.
+	 */
+	private long fileOffsetOf(long block, long offset) {
+		long start = block * getImageBlockSize();
+		long at = getFileOffset(start, (int)Math.min(getImageBlockSize(), getDiskSize() - start));
+		if (at < 0)
+			at = imageTable == null? -1: imageTable.getOffset((int)block);
+		return at < 0? -1: at + offset - start;
+	}
+	
+	/**
+	 * Lists the blocks of {@code size} bytes, up to {@code count}, that have data in
+	 *  this disk image, walking the mapped extents.
+	 * 
+	 * @param size	The size of the blocks listed.
+	 * @param count	The number of blocks to check.
+	 * @return	The block numbers in ascending order.
+	 */
+	int[] getDataBlocks(int size, int count) {
+		int[] blocks = new int[count];
+		int n = 0;
+		for (MappedExtent extent: getMappedExtents(0, (long)count * size)) {
+			int first = (int)(extent.offset / size);
+			int last = (int)((extent.offset + extent.length + size - 1) / size);
+			for (int i = n == 0? first: Math.max(first, blocks[n - 1] + 1); i < last; i++)
+				blocks[n++] = i;
+		}
+		return Arrays.copyOf(blocks, n);
+	}
+	
+	private int scanThreads = 1;
+	
+	/**
+	 * Sets the number of threads that search for blocks filled with zeros in the 
+	 *  {@link #optimize(int)} method. The result is the same for any number of threads.
+	 * 
+	 * @param threads	The number of threads, {@code 1} to search in the calling thread.
+	 */
+	public void setScanThreads(int threads) {
+		scanThreads = Math.max(1, threads);
+	}
+	
+	public int getScanThreads() {
+		return scanThreads;
+	}
+	
+	private int queueDepth = 1;
+	
+	/**
+	 * Sets the number of reads of the image file kept in flight by the next
+	 *  {@link #optimize(int)} and {@link #compact()}, with a {@link ReadQueue}. With a
+	 *  depth of 1 each read ends before the next one starts. The result is the same
+	 *  for any depth.
+	 * 
+	 * @param depth	The maximum number of reads in flight by each task.
+	 */
+	public void setQueueDepth(int depth) {
+		queueDepth = Math.max(1, depth);
+	}
+	
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+	
+	private boolean hostHoles = false;
+	
+	/**
+	 * Sets if the holes of the image file in the host file system, as told by a
+	 *  {@link HostHoleMap}, are taken as zeros without being read, by the next
+	 *  {@link #optimize(int)} and by the reads of a raw image. The map is listed by an
+	 *  external command, so this is off by default.
+	 * 
+	 * @param holes	{@code true} to read the holes of the image file from the host.
+	 */
+	public void setHostHoles(boolean holes) {
+		hostHoles = holes;
+	}
+	
+	public boolean getHostHoles() {
+		return hostHoles;
+	}
+	
 	/** Option for {@link #optimize(int)} method -- to detect blocks filled with zeros. */
 	public static final int FREE_BLOCKS_ZEROED = 1;
 	/** Option for {@link #optimize(int)} method -- to detect blocks not in use. */
 	public static final int FREE_BLOCKS_UNUSED = 2;
 	
+	private static final int PROBE_SIZE = 4096;	// Size of each probe read before a full block
+	private static final int SCAN_BUFFER_SIZE = 8 << 20;	// Maximum size of a read of adjacent blocks
+	private static final int MAX_SCAN_GAP = 65536;	// Maximum gap between blocks read together
+	private static final int MOVE_BUFFER_SIZE = 8 << 20;	// Maximum size of a move of adjacent blocks by compact
+	
+	/** Phase for {@link #setCacheAdvice(int)} -- the search for blocks filled with zeros. */
+	public static final int ADVISE_SCAN = 1;
+	/** Phase for {@link #setCacheAdvice(int)} -- the reads and writes of a copy. */
+	public static final int ADVISE_COPY = 2;
+	/** Phase for {@link #setCacheAdvice(int)} -- the moves of a compact. */
+	public static final int ADVISE_COMPACT = 4;
+	
+	private static final String[] ADVISE_NAMES = {"SCAN", "COPY", "COMPACT"};
+	
+	private int cacheAdvice = 0;
+	private final AtomicInteger cacheHints = new AtomicInteger();
+	
+	/**
+	 * Sets the phases that tell the host to drop the image data from its page cache,
+	 *  once the data is read or written, with a {@link CacheAdvice}. The data of a
+	 *  large image is used once, and would evict the cache of other programs. The
+	 *  only advice is {@code DONTNEED}, from the first byte consumed to the end of
+	 *  file, once for each file when the phase ends. The phases are ignored if the
+	 *  host does not take the advice.
+	 * <p>
+	 * The allowable values for {@code phases} are:<ul>
+	 *  <li>{@link #ADVISE_SCAN}</li>
+	 *  <li>{@link #ADVISE_COPY}, for the source and for this image</li>
+	 *  <li>{@link #ADVISE_COMPACT}</li>
+	 * </ul>
+	 * @param phases	above values combined with the bitwise operator {@code OR}.
+	 */
+	public void setCacheAdvice(int phases) {
+		if ((phases & ~(ADVISE_SCAN | ADVISE_COPY | ADVISE_COMPACT)) != 0)
+			throw new IllegalArgumentException(String.format("Cache advice: %d", phases));
+		cacheAdvice = phases;
+	}
+	
+	public int getCacheAdvice() {
+		return cacheAdvice;
+	}
+	
+	/**
+	 * Returns the number of hints given to the host page cache so far.
+	 * 
+	 * @return	The hints given by all phases.
+	 */
+	public int getCacheHints() {
+		return cacheHints.get();
+	}
+	
+	/**
+	 * Returns the phases of cache advice for {@code name}: SCAN, COPY, COMPACT, ALL or NONE.
+	 * 
+	 * @param name	The name of a phase, in any case.
+	 * @return	The phases, or -1 if the name is unknown.
+	 */
+	public static int adviceOf(String name) {
+		if (name.equalsIgnoreCase("ALL"))
+			return ADVISE_SCAN | ADVISE_COPY | ADVISE_COMPACT;
+		if (name.equalsIgnoreCase("NONE"))
+			return 0;
+		for (int i = 0; i < ADVISE_NAMES.length; i++) {
+			if (ADVISE_NAMES[i].equalsIgnoreCase(name))
+				return 1 << i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the names of the {@code phases}, separated by commas.
+	 * 
+	 * @param phases	The phases of cache advice.
+	 * @return	The names, or NONE.
+	 */
+	public static String adviceName(int phases) {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < ADVISE_NAMES.length; i++) {
+			if ((phases & 1 << i) != 0)
+				names.append(names.length() == 0? "": ",").append(ADVISE_NAMES[i]);
+		}
+		return names.length() == 0? "NONE": names.toString();
+	}
+	
+	/**
+	 * Returns a cache advice for a task of {@code phase} on {@code file}.
+	 * 
+	 * @return	The advice, or {@code null} if the phase is not advised or not supported.
+	 */
+	CacheAdvice adviseCache(int phase, String file) {
+		if ((cacheAdvice & phase) == 0 || file == null)
+			return null;
+		return CacheAdvice.open(new File(file), cacheHints);
+	}
+	
 	/**
 	 * Scans the disk image to detect blocks of data that are filled with zeros or are
 	 *  not in use by file systems, depending on the {@code options} bit set. Blocks
@@ -356,6 +650,9 @@ public abstract class DiskImage implements AutoCloseable {
 	 *  <li>{@link #FREE_BLOCKS_ZEROED}</li>
 	 *  <li>{@link #FREE_BLOCKS_UNUSED}</li>
 	 * </ul>
+	 * The search for blocks filled with zeros is split between threads as set by
+	 *  {@link #setScanThreads(int)}. If set by {@link #setHostHoles(boolean)}, blocks
+	 *  that are in holes of the image file are filled with zeros and are not read.
 	 * @param options	above values combined with the bitwise operator {@code OR}.
 	 * @throws IOException if some I/O error occurs.
 	 */
@@ -381,28 +678,36 @@ public abstract class DiskImage implements AutoCloseable {
 			if (blocksUnused == null)
 				blocksUnused = 0;
 			
-			// Calls DiskFileSystem.isAllocated for each data block completely included in
-			//	each file system, and frees the block if not in use by the file system
+			// Walks the extents not in use by each file system, and frees the data blocks
+			//	completely included in them. The work grows with the number of free extents
 			
 			long length = getImageBlockSize();
 			
 			for (DiskFileSystem fs: layout.getFileSystems()) {
 				FileSysData fsd = blockView.get(fs);
 				long offset = fs.getOffset();
-				for (int i = fsd.blockStart, s = fsd.blockEnd; i < s && !thisThread.isInterrupted(); i++) {
-					if (imageTable.exists(i)) {
-						progress.step(1);
-						if (!fs.isAllocated(i * length - offset, length)) {
+				int mapped = fsd.blocksMapped;
+				long start = fsd.blockStart * length - offset;
+				long end = fsd.blockEnd * length - offset;
+				for (DiskFileSystem.Extent free: fs.getExtents(start, end - start, false)) {
+					if (thisThread.isInterrupted())
+						break;
+					int i = (int)Static.ceilDiv(offset + free.offset, length);
+					for (int s = (int)((offset + free.offset + free.length) / length); i < s; i++) {
+						if (imageTable.exists(i)) {
 							imageTable.free(i);
 							blocksUnused++;
 							dirty = true;
 							fsd.blocksMapped--;
 							fsd.blocksUnused++;
-							progress.step(ZW);
+							mapped--;
+							progress.step(1 + ZW);
 							progress.view();
 						}
 					}
 				}
+				progress.step(mapped);
+				fs.release();
 			}
 		}
 		
@@ -411,40 +716,305 @@ public abstract class DiskImage implements AutoCloseable {
 				blocksZeroed = 0;
 			
 			// Each block is zeroed if all the bytes in the block are zero
-
-			int img = getImageBlockSize();
-			byte[] buffer = new byte[img];
 			
-			for (int i = 0, s = getImageBlocksCount(); i < s && !thisThread.isInterrupted(); i++) {
-				if (imageTable.exists(i)) {
-					progress.step(ZW);
-					media.seek(imageTable.getOffset(i));
-					media.readFully(buffer, 0, img);
-					if (isZero(buffer, 0, img)) {
-						media.readFully(buffer, img, buffer.length - img);
-						if (isZero(buffer, img, buffer.length - img)) {
-							imageTable.free(i);
-							blocksZeroed++;
-							dirty = true;
-							// Only a few partitions and discardable blocks
-							//	are expected, a linear search is adequate
-							for (FileSysData fsd: blockView.values()) {
-								if (i >= fsd.blockStart && i < fsd.blockEnd) {
-									fsd.blocksMapped--;
-									fsd.blocksZeroed++;
-									progress.view();
-									break;
-								}
-							}
+			// The mapped blocks are scanned in ascending order of file offset, and
+			//	physically adjacent blocks are read together, in one forward sweep
+			
+			// Blocks in holes of the image file are zeroed without a read
+			
+			int[] order = imageTable.getBlocksInFileOrder(0, getImageBlocksCount());
+			HostHoleMap holes = path == null || !hostHoles? null: HostHoleMap.open(new File(path));
+			if (holes != null) {
+				int img = getImageBlockSize(), n = 0;
+				for (int k = 0; k < order.length; k++) {
+					if (holes.isHole(imageTable.getOffset(order[k]), img)) {
+						freeZeroedBlock(order[k], progress);
+						progress.step(ZW);
+					} else {
+						order[n++] = order[k];
+					}
+				}
+				order = Arrays.copyOf(order, n);
+			}
+			AtomicInteger probed = new AtomicInteger();
+			AtomicInteger hits = new AtomicInteger();
+			ReadQueue reads = queueDepth > 1? new ReadQueue(access, queueDepth): null;
+			CacheAdvice advice = adviseCache(ADVISE_SCAN, path);
+			ZeroScan scan = null;
+			try {
+				if (scanThreads > 1) {
+					BitSet zeroed = findZeroedBlocks(order, progress, ZW, probed, hits, reads, advice);
+					for (int i = zeroed.nextSetBit(0); i >= 0; i = zeroed.nextSetBit(i + 1)) {
+						freeZeroedBlock(i, progress);
+					}
+				} else {
+					scan = new ZeroScan(probed, hits, reads, advice);
+					
+					for (int k = 0, next; k < order.length && !thisThread.isInterrupted(); k = next) {
+						next = scan.scanRun(order, k, order.length);
+						progress.step((next - k) * ZW);
+						for (int i = scan.found.nextSetBit(0); i >= 0; i = scan.found.nextSetBit(i + 1)) {
+							freeZeroedBlock(i, progress);
 						}
+						scan.found.clear();
 					}
 				}
+			} finally {
+				if (scan != null)
+					scan.end();
+				if (advice != null)
+					advice.end();
+				if (reads != null)
+					reads.close();
 			}
+			blocksProbed = (blocksProbed == null? 0: blocksProbed) + probed.get();
+			probeHits = (probeHits == null? 0: probeHits) + hits.get();
 		}
 		
 		progress.end();
 	}
 	
+	/**
+	 * Searches blocks filled with zeros in runs of mapped blocks that are physically
+	 *  adjacent in the image file. Before a block is read, a few small probes are read
+	 *  from the first, middle and last {@code PROBE_SIZE} bytes of the block. Most
+	 *  blocks with data are rejected by a probe, and only the blocks where all probes
+	 *  are zero are read in full, so the result is the same as a full scan. Adjacent
+	 *  blocks that pass the probes are read together with a single read.
+	 * <p>
+	 * With a {@link ReadQueue} the probes of the next blocks are read together, up to
+	 *  the depth of the queue, one probe of each block at a time.
+	 * <p>
+	 * Each instance has its own buffers and must be used by one thread at a time.
+	 */
+	private class ZeroScan {
+		final BitSet found = new BitSet();
+		private final int img = getImageBlockSize();
+		private final byte[] buffer = BufferPool.take(Math.max(img, SCAN_BUFFER_SIZE));
+		private final byte[] probe = BufferPool.take(PROBE_SIZE);
+		private final AtomicInteger probed;
+		private final AtomicInteger hits;
+		private final CacheAdvice advice;
+		private final ReadQueue reads;
+		private final BitSet rejected = new BitSet();	// Indexes in order rejected by a probe
+		private int probedTo = 0;						// The index in order after the last probed
+		private byte[] probes = null;
+		
+		ZeroScan(AtomicInteger probed, AtomicInteger hits, ReadQueue reads, CacheAdvice advice) {
+			this.probed = probed;
+			this.hits = hits;
+			this.reads = reads;
+			this.advice = advice;
+		}
+		
+		/** Gives the buffers back. */
+		void end() {
+			BufferPool.give(buffer);
+			BufferPool.give(probe);
+			BufferPool.give(probes);
+		}
+		
+		/**
+		 * Scans the run of physically adjacent blocks that starts at {@code order[first]}
+		 *  and adds the blocks filled with zeros to {@code found}. A run ends at the first
+		 *  block that is not adjacent or does not fit in the buffer.
+		 * 
+		 * @param order	The mapped blocks in ascending order of file offset.
+		 * @param first	The index in {@code order} of the first block in the run.
+		 * @param last	The index in {@code order} where the scan must stop, exclusive.
+		 * @return	The index in {@code order} of the first block after the run.
+		 * @throws IOException if some I/O error occurs.
+		 */
+		int scanRun(int[] order, int first, int last) throws IOException {
+			long base = imageTable.getOffset(order[first]);
+			int end = first + 1;
+			for (long prev = base; end < last; end++) {
+				long offset = imageTable.getOffset(order[end]);
+				long gap = offset - prev - img;
+				if (gap < 0 || gap > MAX_SCAN_GAP || offset + img - base > buffer.length)
+					break;
+				prev = offset;
+			}
+			
+			int from = first;
+			for (int k = first; k < end; k++) {
+				if (reads != null && k >= probedTo)
+					probeAhead(order, k, Math.min(last, k + reads.getDepth() * 4));
+				if (reads != null? rejected.get(k): !isZeroProbe(imageTable.getOffset(order[k]))) {
+					readRun(order, from, k);
+					from = k + 1;
+				}
+			}
+			readRun(order, from, end);
+			return end;
+		}
+		
+		private boolean isZeroProbe(long offset) throws IOException {
+			if (img < PROBE_SIZE * 4)
+				return true;
+			probed.incrementAndGet();
+			int middle = img / 2 / PROBE_SIZE * PROBE_SIZE;
+			for (int start: new int[] {0, middle, img - PROBE_SIZE}) {
+				access.readFully(offset + start, probe, 0, PROBE_SIZE);
+				if (advice != null)
+					advice.read(offset + start, PROBE_SIZE);
+				if (!isZero(probe, 0, PROBE_SIZE)) {
+					hits.incrementAndGet();
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/* The same probes as isZeroProbe, for the blocks from order[first] to order[last-1].
+		 */
+		private void probeAhead(int[] order, int first, int last) throws IOException {
+			rejected.clear(first, last);
+			probedTo = last;
+			if (img < PROBE_SIZE * 4)
+				return;
+			int n = last - first;
+			if (probes == null || probes.length < n * PROBE_SIZE) {
+				BufferPool.give(probes);
+				probes = BufferPool.take(n * PROBE_SIZE);
+			}
+			probed.addAndGet(n);
+			ReadQueue.Read[] wave = new ReadQueue.Read[n];
+			int middle = img / 2 / PROBE_SIZE * PROBE_SIZE;
+			for (int start: new int[] {0, middle, img - PROBE_SIZE}) {
+				for (int j = 0; j < n; j++) {
+					if (!rejected.get(first + j))
+						wave[j] = reads.submit(imageTable.getOffset(order[first + j]) + start, probes, j * PROBE_SIZE, PROBE_SIZE);
+				}
+				for (int j = 0; j < n; j++) {
+					if (!rejected.get(first + j)) {
+						wave[j].await();
+						if (advice != null)
+							advice.read(imageTable.getOffset(order[first + j]) + start, PROBE_SIZE);
+						if (!isZero(probes, j * PROBE_SIZE, PROBE_SIZE)) {
+							hits.incrementAndGet();
+							rejected.set(first + j);
+						}
+					}
+				}
+			}
+		}
+		
+		private void readRun(int[] order, int from, int to) throws IOException {
+			if (from >= to)
+				return;
+			long base = imageTable.getOffset(order[from]);
+			int length = (int)(imageTable.getOffset(order[to - 1]) + img - base);
+			access.readFully(base, buffer, 0, length);
+			if (advice != null)
+				advice.read(base, length);
+			for (int k = from; k < to; k++) {
+				if (isZero(buffer, (int)(imageTable.getOffset(order[k]) - base), img))
+					found.set(order[k]);
+			}
+		}
+	}
+	
+	private void freeZeroedBlock(int i, Progress progress) {
+		imageTable.free(i);
+		blocksZeroed++;
+		dirty = true;
+		// Only a few partitions and discardable blocks
+		//	are expected, a linear search is adequate
+		for (FileSysData fsd: blockView.values()) {
+			if (i >= fsd.blockStart && i < fsd.blockEnd) {
+				fsd.blocksMapped--;
+				fsd.blocksZeroed++;
+				progress.view();
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Searches the mapped blocks that are filled with zeros with {@code scanThreads}
+	 *  workers. The blocks, in ascending order of file offset, are split in contiguous
+	 *  ranges, one for each worker, and each worker reads into its own buffers. No
+	 *  block is freed here: the result is merged by the caller in ascending block
+	 *  order, with the same result as a single threaded search.
+	 * <p>
+	 * If the calling thread is interrupted the workers stop, and the blocks found
+	 *  so far are returned with the interrupt status set.
+	 * 
+	 * @param order		The mapped blocks in ascending order of file offset.
+	 * @param progress	The progress of the optimize task.
+	 * @param weight	The progress step for each block read.
+	 * @param probed	Counts the blocks probed.
+	 * @param hits		Counts the blocks rejected by a probe.
+	 * @param reads		The queue of probe reads shared by the workers, or {@code null}.
+	 * @param advice	The cache advice shared by the workers, or {@code null}.
+	 * @return	The set of block numbers that are filled with zeros.
+	 * @throws IOException if some I/O error occurs in any worker.
+	 */
+	private BitSet findZeroedBlocks(final int[] order, Progress progress, long weight, 
+			final AtomicInteger probed, final AtomicInteger hits, ReadQueue reads, CacheAdvice advice) throws IOException {
+		final int count = order.length;
+		final int workers = Math.max(1, Math.min(scanThreads, count));
+		
+		final ZeroScan[] scans = new ZeroScan[workers];
+		final AtomicInteger blocksRead = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		
+		Thread[] scan = new Thread[workers];
+		for (int w = 0; w < workers; w++) {
+			final ZeroScan zs = new ZeroScan(probed, hits, reads, advice);
+			final int first = (int)((long)count * w / workers);
+			final int last = (int)((long)count * (w + 1) / workers);
+			scans[w] = zs;
+			scan[w] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int k = first, next; k < last && !stop.get(); k = next) {
+							next = zs.scanRun(order, k, last);
+							blocksRead.addAndGet(next - k);
+						}
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+						stop.set(true);
+					} finally {
+						zs.end();
+					}
+				}
+			}, "CompactVD scan "+w);
+			scan[w].setDaemon(true);
+			scan[w].start();
+		}
+		
+		Thread thisThread = Thread.currentThread();
+		boolean interrupted = false;
+		long stepped = 0;
+		for (Thread worker: scan) {
+			while (worker.isAlive()) {
+				try {
+					worker.join(Progress.UPDATE_INTERVAL);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+				if (interrupted || thisThread.isInterrupted())
+					stop.set(true);
+				int read = blocksRead.get();
+				progress.step((read - stepped) * weight);
+				stepped = read;
+			}
+		}
+		if (interrupted)
+			thisThread.interrupt();
+		if (failure.get() != null)
+			throw failure.get();
+		
+		BitSet zeroed = new BitSet(getImageBlocksCount());
+		for (ZeroScan zs: scans)
+			zeroed.or(zs.found);
+		return zeroed;
+	}
+	
 	/**
 	 * Compacts {@code this} disk image moving blocks from the end of the image to space
 	 *  that was marked as not in use by a previous call to the {@link #optimize(int)}
@@ -464,6 +1034,182 @@ public abstract class DiskImage implements AutoCloseable {
 	 */
 	public abstract void copy(DiskImage source) throws IOException;
 	
+	/** Order for {@link #setCopyOrder(int)} -- blocks are copied in ascending virtual order. */
+	public static final int COPY_VIRTUAL_ORDER = 0;
+	/** Order for {@link #setCopyOrder(int)} -- blocks are copied in source file order. */
+	public static final int COPY_FILE_ORDER = 1;
+	
+	private MessageDigest copyDigest = null;
+	private int copyThreads = 1;
+	private boolean copyDirect = false;
+	private boolean copyPreallocate = true;
+	private boolean copyTransfer = true;
+	private long copyBudget = 16L << 20;
+	private int copyOrder = COPY_VIRTUAL_ORDER;
+	
+	/**
+	 * Sets the number of threads that read the source image in the next
+	 *  {@link #copy(DiskImage)}. The copy is the same for any number of threads.
+	 * 
+	 * @param threads	The number of threads reading the source.
+	 */
+	public void setCopyThreads(int threads) {
+		copyThreads = Math.max(1, threads);
+	}
+	
+	public int getCopyThreads() {
+		return copyThreads;
+	}
+	
+	/**
+	 * Sets the memory, in bytes, used by the next {@link #copy(DiskImage)} for blocks
+	 *  read but not written yet. At least two image blocks are always used.
+	 * 
+	 * @param bytes	The maximum number of bytes in flight.
+	 */
+	public void setCopyBudget(long bytes) {
+		copyBudget = Math.max(0, bytes);
+	}
+	
+	public long getCopyBudget() {
+		return copyBudget;
+	}
+	
+	/**
+	 * Sets the order of the blocks in the next {@link #copy(DiskImage)}. In file order
+	 *  the source is read sequentially and each block is appended to this image, so a
+	 *  fragmented source is read without seeks. The virtual disk copied is the same.
+	 * 
+	 * @param order	One of {@link #COPY_VIRTUAL_ORDER} or {@link #COPY_FILE_ORDER}.
+	 */
+	public void setCopyOrder(int order) {
+		if (order != COPY_VIRTUAL_ORDER && order != COPY_FILE_ORDER)
+			throw new IllegalArgumentException(String.format("Copy order: %d", order));
+		copyOrder = order;
+	}
+	
+	public int getCopyOrder() {
+		return copyOrder;
+	}
+	
+	/**
+	 * Sets direct I/O for the data written by the next {@link #copy(DiskImage)}, so that
+	 *  a large copy does not fill the host page cache. The copy is written as usual if
+	 *  the host file system does not support direct I/O.
+	 * 
+	 * @param direct	{@code true} to write the copy around the page cache.
+	 */
+	public void setCopyDirect(boolean direct) {
+		copyDirect = direct;
+	}
+	
+	public boolean isCopyDirect() {
+		return copyDirect;
+	}
+	
+	/**
+	 * Sets the allocation of the image file, before the next {@link #copy(DiskImage)},
+	 *  with the length it will have if no block is filled with zeros. The blocks are
+	 *  appended to one extent instead of growing the file a block at a time, that the
+	 *  host file system may scatter. The unused tail is trimmed at the end of the copy.
+	 * 
+	 * @param preallocate	{@code true} to allocate the image file before the copy.
+	 */
+	public void setCopyPreallocate(boolean preallocate) {
+		copyPreallocate = preallocate;
+	}
+	
+	public boolean isCopyPreallocate() {
+		return copyPreallocate;
+	}
+	
+	/**
+	 * Sets the transfer of the blocks of the next {@link #copy(DiskImage)} from file to
+	 *  file, without the Java heap, when a block is stored in one piece in the source
+	 *  file and is found to have data by a few small probes. Other blocks, and all
+	 *  blocks of a copy written with direct I/O or digested in virtual order, are read
+	 *  and written as usual. The copy is the same in both ways.
+	 * 
+	 * @param transfer	{@code true} to transfer the blocks that can be.
+	 */
+	public void setCopyTransfer(boolean transfer) {
+		copyTransfer = transfer;
+	}
+	
+	public boolean isCopyTransfer() {
+		return copyTransfer;
+	}
+	
+	/**
+	 * Allocates the image file up to {@code length} bytes, if set by
+	 *  {@link #setCopyPreallocate(boolean)} and supported by the host.
+	 * 
+	 * @param length	The length predicted for the image file after the copy.
+	 * @throws IOException if some I/O error occurs.
+	 */
+	protected void preallocate(long length) throws IOException {
+		long from = media.length();
+		if (copyPreallocate && path != null && length > from)
+			HolePuncher.allocate(new File(path), from, length - from);
+	}
+	
+	/**
+	 * Sets a message digest to be updated by the next {@link #copy(DiskImage)} with
+	 *  the contents of the virtual disk, in the same way as a raw image of the disk.
+	 *  The digest is not updated if the copy is interrupted.
+	 * 
+	 * @param digest	The message digest, or {@code null} to stop digesting copies.
+	 */
+	public void setCopyDigest(MessageDigest digest) {
+		copyDigest = digest;
+	}
+	
+	/**
+	 * Copies the blocks of {@code source} to this image, a block at a time in {@code copyOrder},
+	 *  while the next blocks are read from {@code source} by {@code copyThreads} other
+	 *  threads. The calling thread must own the monitors of both images.
+	 * 
+	 * @param source	The image to copy from, with the same disk size.
+	 * @param progress	The progress of the copy, one step for each block written.
+	 * @param skipEmpty	If {@code true} blocks without data in {@code source}, or filled
+	 *  with zeros, are not written.
+	 * @throws IOException if some I/O error occurs.
+	 */
+	protected void copyBlocks(DiskImage source, Progress progress, boolean skipEmpty) throws IOException {
+		boolean fileOrder = copyOrder == COPY_FILE_ORDER;
+		DiskImageCopy copy = new DiskImageCopy(this, source, progress, skipEmpty, copyThreads, copyBudget, fileOrder);
+		DiskImageCopy.Digest digest = copyDigest == null? null: new DiskImageCopy.Digest(copyDigest, this);
+		if (digest != null && !fileOrder)
+			copy.addTransform(digest);
+		CacheAdvice read = adviseCache(ADVISE_COPY, source.path);
+		CacheAdvice written = copyDirect? null: adviseCache(ADVISE_COPY, path);
+		copy.setCacheAdvice(read, written);
+		
+		// Data blocks are written by a direct writer, metadata through the media
+		dataWriter = copyDirect? DirectWriteMedia.open(new File(path)): null;
+		BlockTransfer transfer = null;
+		if (!copyDirect && copyTransfer && source.path != null && (digest == null || fileOrder)) {
+			transfer = BlockTransfer.open(new File(path), new File(source.path));
+			copy.setTransfer(transfer);
+		}
+		try {
+			copy.run();
+		} finally {
+			if (read != null)
+				read.end();
+			if (written != null)
+				written.end();
+			if (transfer != null)
+				transfer.close();
+			if (dataWriter != null) {
+				dataWriter.close();
+				dataWriter = null;
+			}
+		}
+		if (digest != null && fileOrder && !Thread.currentThread().isInterrupted())
+			digest.digest(this);
+	}
+	
 	/**
 	 * Attempts to acquire an exclusive lock on this image file. 
 	 * 
@@ -497,12 +1243,25 @@ public abstract class DiskImage implements AutoCloseable {
 		return true;
 	}
 	
+	/**
+	 * Returns the media used for the data of this image.
+	 * 
+	 * @return	The {@link DiskImageMedia} of this image.
+	 */
+	public DiskImageMedia getImageMedia() {
+		return access;
+	}
+	
 	@Override
 	public synchronized void close() throws IOException {
 		if (media != null) {
 			if (dirty && touched && !readOnly) {
 				update();
 			}
+			if (access != null) {
+				access.close();
+				access = null;
+			}
 			media.close();
 			media = null;
 		}
@@ -515,6 +1274,48 @@ public abstract class DiskImage implements AutoCloseable {
 		return String.format("%s [%s] %s", path, getType(), layout.toString());
 	}
 	
+	/**
+	 * Writes {@code length} bytes of image block data to the image file, starting at
+	 *  {@code position}. The block tables write the block data here, and the metadata
+	 *  through the media. The data of a copy may be written by a writer of its own,
+	 *  with the media file pointer left after the data as if written through it.
+	 * 
+	 * @param	position	the file position where the write starts.
+	 * @param	out		the data.
+	 * @param	start	the start offset in the data.
+	 * @param	length	the number of bytes to write.
+	 * @throws	IOException if some I/O error occurs.
+	 */
+	protected void writeData(long position, byte[] out, int start, int length) throws IOException {
+		if (dataWriter == null) {
+			media.seek(position);
+			media.write(out, start, length);
+			return;
+		}
+		dataWriter.write(position, out, start, length);
+		media.seek(position + length);
+	}
+	
+	/**
+	 * Writes the image block {@code blockNumber} with the data of {@code source} file
+	 *  at {@code position}, copied from file to file by {@code transfer}. The block
+	 *  table places the block as for a write of the whole block, and the data is not
+	 *  read. The media file pointer is left after the block.
+	 * 
+	 * @param	blockNumber	the image block to write.
+	 * @param	transfer	the transfer from the source file to this image file.
+	 * @param	position	the position of the block data in the source file.
+	 * @throws	IOException if some I/O error occurs.
+	 */
+	void transferBlock(int blockNumber, BlockTransfer transfer, long position) throws IOException {
+		int size = getImageBlockSize();
+		long at = imageTable.allocate(blockNumber);
+		transfer.transfer(position, at, size);
+		media.seek(at + size);
+		touched = true;
+		dirty = true;
+	}
+	
 	protected void fillTo(long offset) throws IOException {
 		long want = offset - media.getFilePointer();
 		if (want > 0) {
@@ -534,7 +1335,8 @@ public abstract class DiskImage implements AutoCloseable {
 	
 	/**
 	 * Counts the number of clusters that will be moved from the end of the
-	 *  image to unallocated space by a compact operation.
+	 *  image to unallocated space by a compact operation with the
+	 *  {@link DiskImageCompactPlan#MINIMAL_MOVES} strategy.
 	 *  
 	 * @param reverseMap A map of the virtual device clusters, with -1 when
 	 * 					there is no data in the image. This is the reverse
@@ -542,18 +1344,261 @@ public abstract class DiskImage implements AutoCloseable {
 	 * @return	The number of clusters that will be moved by compact.
 	 */
 	protected static int countCompactMoves(int[] reverseMap) {
-		int count = 0;
-		for (int i = 0, s = reverseMap.length; i < s; i++) { // These blocks will be mapped
-			if (reverseMap[i] == -1) {
-				for (s = s - 1; s > i; s--) { // These blocks will be free
-					if (reverseMap[s] != -1) {
-						count++; // This block will be moved
-						break;
+		return new DiskImageCompactPlan(reverseMap, 0, DiskImageCompactPlan.MINIMAL_MOVES).getMoves();
+	}
+	
+	/**
+	 * Moves the clusters of the image as planned by a {@link DiskImageCompactPlan}.
+	 *  Adjacent moves, to adjacent clusters from adjacent clusters in either order,
+	 *  are made with one read and one write of up to {@code MOVE_BUFFER_SIZE} bytes.
+	 *  The clusters read in descending order are reversed in memory.
+	 * <p>
+	 * A move only writes to a cluster that is not mapped by the metadata in the image,
+	 *  the metadata is updated by the subclass before the first move, if needed, and
+	 *  after each round of the plan but the last.
+	 */
+	protected abstract class CompactMoves {
+		private final DiskImageCompactPlan plan;
+		private final int[] reverseMap;
+		private final int length;
+		private boolean needsUpdate;
+		private boolean moved = false;
+		
+		/**
+		 * @param plan		The moves to make.
+		 * @param needsInitialUpdate	If {@code true} the metadata is updated before
+		 *  the first move.
+		 */
+		protected CompactMoves(DiskImageCompactPlan plan, boolean needsInitialUpdate) {
+			this.plan = plan;
+			this.reverseMap = plan.reverseMap.clone();
+			this.length = plan.length;
+			this.needsUpdate = needsInitialUpdate;
+		}
+		
+		/** Returns the image offset of the cluster at {@code index} in the reverse map. */
+		protected abstract long offsetOf(int index);
+		
+		/** Writes the metadata with a journal id at {@code offset}, a cluster about to be written. */
+		protected abstract void commit(long offset) throws IOException;
+		
+		/** Maps the virtual {@code block} to the cluster at {@code index} in the reverse map. */
+		protected abstract void map(int block, int index);
+		
+		/**
+		 * Makes the planned moves until the end of the plan or the thread is interrupted.
+		 * 
+		 * @param progress	Steps one for each cluster moved.
+		 * @return	The index after the last mapped cluster.
+		 * @throws IOException if some I/O error occurs.
+		 */
+		public int run(Progress progress) throws IOException {
+			if (plan.holes.length > 0)
+				return punch(progress);
+			
+			CacheAdvice advice = adviseCache(ADVISE_COMPACT, path);
+			try {
+				moveAll(progress, advice);
+			} finally {
+				if (advice != null)
+					advice.end();
+			}
+			return DiskImageCompactPlan.endOf(reverseMap);
+		}
+		
+		/* The reads of the next moves of the round are submitted to a queue, up to its
+		 *  depth, while the previous ones are written. A round never writes to a cluster
+		 *  that it reads, but the next round may, so no read is made ahead of a round.
+		 */
+		private void moveAll(Progress progress, CacheAdvice advice) throws IOException {
+			Thread thisThread = Thread.currentThread();
+			ReadQueue reads = new ReadQueue(access, queueDepth);
+			int most = Math.max(1, MOVE_BUFFER_SIZE / length / reads.getDepth());
+			byte[] swap = BufferPool.take(length);
+			ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+			ArrayDeque<Move> ahead = new ArrayDeque<Move>();
+			int[] from = plan.from, to = plan.to;
+			
+			try {
+				for (int r = 0, k = 0; r < plan.rounds.length && !thisThread.isInterrupted(); r++) {
+					if (r > 0)
+						needsUpdate = true;
+					for (int end = plan.rounds[r], next = k; k < end && !thisThread.isInterrupted(); ) {
+						
+						while (next < end && ahead.size() < reads.getDepth()) {
+							Move move = new Move(next, end, most);
+							move.buffer = buffers.isEmpty()? BufferPool.take(most * length): buffers.remove();
+							move.read = reads.submit(offsetOf(move.low), move.buffer, 0, move.n * length);
+							ahead.add(move);
+							next += move.n;
+						}
+						
+						Move move = ahead.remove();
+						int n = move.n;
+						byte[] buffer = move.buffer;
+						move.read.await();
+						if (advice != null)
+							advice.read(offsetOf(move.low), n * length);
+						if (move.step < 0) {
+							for (int a = 0, b = n - 1; a < b; a++, b--) {
+								System.arraycopy(buffer, a * length, swap, 0, length);
+								System.arraycopy(buffer, b * length, buffer, a * length, length);
+								System.arraycopy(swap, 0, buffer, b * length, length);
+							}
+						}
+						if (needsUpdate) {
+						//	put journal id in the cluster that will be overwritten
+							commit(offsetOf(to[k]));
+							needsUpdate = false;
+						}
+						media.seek(offsetOf(to[k]));
+						media.write(buffer, 0, n * length);
+						if (advice != null)
+							advice.written(offsetOf(to[k]), n * length);
+						progress.step(n);
+						touched = true;
+						for (int j = k; j < k + n; j++) {
+							reverseMap[to[j]] = reverseMap[from[j]];
+							reverseMap[from[j]] = -1;
+							map(reverseMap[to[j]], to[j]);
+						}
+						buffers.add(buffer);
+						moved = true;
+						k += n;
 					}
 				}
+			} finally {
+				for (Move move: ahead) {	// The buffers are not used after the reads
+					try {
+						move.read.await();
+					} catch (IOException e) {}
+					buffers.add(move.buffer);
+				}
+				reads.close();
+				for (byte[] buffer: buffers)
+					BufferPool.give(buffer);
+				BufferPool.give(swap);
+			}
+		}
+		
+		/**
+		 * Moves k to k+n-1 of the plan, that write adjacent clusters from adjacent clusters.
+		 */
+		private class Move {
+			final int n, step, low;
+			byte[] buffer;
+			ReadQueue.Read read;
+			
+			Move(int k, int end, int most) {
+				int[] from = plan.from, to = plan.to;
+				int n = 1, step = 0;
+				if (k + 1 < end && to[k + 1] == to[k] + 1 && Math.abs(from[k + 1] - from[k]) == 1)
+					step = from[k + 1] - from[k];
+				while (step != 0 && n < most && k + n < end && to[k + n] == to[k] + n && from[k + n] == from[k] + n * step)
+					n++;
+				this.n = n;
+				this.step = step;
+				this.low = step < 0? from[k + n - 1]: from[k];
+			}
+		}
+		
+		/* The metadata is updated before the first hole, so no punched cluster is
+		 *  mapped in the image, and the holes are punched in runs of adjacent clusters.
+		 */
+		private int punch(Progress progress) throws IOException {
+			HolePuncher puncher = getHolePuncher();
+			if (puncher == null)
+				throw new IOException(String.format("Can not punch holes in %s", path));
+			Thread thisThread = Thread.currentThread();
+			int[] holes = plan.holes;
+			
+			if (needsUpdate) {
+			//	put journal id in the first cluster that will be punched
+				commit(offsetOf(holes[0]));
+				needsUpdate = false;
+			}
+			long[] offsets = new long[HolePuncher.MAX_RUNS], lengths = new long[HolePuncher.MAX_RUNS];
+			for (int k = 0; k < holes.length && !thisThread.isInterrupted(); ) {
+				int runs = 0, clusters = 0;
+				while (k < holes.length && runs < offsets.length) {
+					int n = 1;
+					while (k + n < holes.length && holes[k + n] == holes[k] + n)
+						n++;
+					offsets[runs] = offsetOf(holes[k]);
+					lengths[runs++] = (long)n * length;
+					clusters += n;
+					k += n;
+				}
+				puncher.punch(offsets, lengths, runs);
+				progress.step(clusters);
+				touched = true;
 			}
+			return DiskImageCompactPlan.endOf(reverseMap);
+		}
+		
+		/** Returns {@code true} if some cluster was moved. */
+		public boolean moved() {
+			return moved;
+		}
+	}
+	
+	/**
+	 * Returns a plan of the moves that {@link #compact()} would make now, with the
+	 *  strategy set by {@link #setCompactStrategy(int)}.
+	 * 
+	 * @return	The plan, or {@code null} if the image is not compacted by moving clusters.
+	 */
+	public DiskImageCompactPlan planCompact() {
+		return null;
+	}
+	
+	private int compactStrategy = DiskImageCompactPlan.MINIMAL_MOVES;
+	private HolePuncher holePuncher = null;
+	private boolean holesTested = false;
+	
+	/**
+	 * Sets the strategy of the next {@link #compact()}. The moving strategies give back
+	 *  the same space, and differ in the order of the clusters and in the bytes moved.
+	 *  {@link DiskImageCompactPlan#PUNCH_HOLES} moves nothing, and is replaced by
+	 *  {@link DiskImageCompactPlan#MINIMAL_MOVES} if the host can not punch holes.
+	 * 
+	 * @param strategy	One of {@link DiskImageCompactPlan#MINIMAL_MOVES},
+	 *  {@link DiskImageCompactPlan#PRESERVE_ORDER}, {@link DiskImageCompactPlan#DEFRAGMENT}
+	 *  or {@link DiskImageCompactPlan#PUNCH_HOLES}.
+	 */
+	public void setCompactStrategy(int strategy) {
+		if (strategy < DiskImageCompactPlan.MINIMAL_MOVES || strategy > DiskImageCompactPlan.PUNCH_HOLES)
+			throw new IllegalArgumentException(String.format("Compact strategy: %d", strategy));
+		compactStrategy = strategy;
+	}
+	
+	public int getCompactStrategy() {
+		return compactStrategy;
+	}
+	
+	/**
+	 * Returns the strategy that {@link #planCompact()} must use: the one set, unless
+	 *  holes are asked and the host file system does not support them.
+	 * 
+	 * @return	The strategy of the plan.
+	 */
+	protected int getPlanStrategy() {
+		if (compactStrategy == DiskImageCompactPlan.PUNCH_HOLES && getHolePuncher() == null)
+			return DiskImageCompactPlan.MINIMAL_MOVES;
+		return compactStrategy;
+	}
+	
+	/**
+	 * Returns a hole puncher for the image file, tested on the first call.
+	 * 
+	 * @return	The hole puncher, or {@code null} if holes are not supported.
+	 */
+	protected HolePuncher getHolePuncher() {
+		if (!holesTested) {
+			holePuncher = readOnly? null: HolePuncher.open(new File(path));
+			holesTested = true;
 		}
-		return count;
+		return holePuncher;
 	}
 	
 	/**
@@ -565,14 +1610,7 @@ public abstract class DiskImage implements AutoCloseable {
 	 * @return			The number of clusters that will be read.
 	 */
 	protected int countDataReads(DiskImage source) {
-		int length = getImageBlockSize(), count = 0;
-		long offset = 0L;
-		for (int i = 0, s = getImageBlocksCount(); i < s; i++) {
-			if (source.hasData(offset, length))
-				count++;
-			offset += length;
-		}
-		return count;
+		return source.getDataBlocks(getImageBlockSize(), getImageBlocksCount()).length;
 	}
 	
 	private final Vector<DiskImageObserver> obsProgress = new Vector<DiskImageObserver>();
@@ -16,6 +16,10 @@
 
 package io.github.eternalbits.disk;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * Abstract class that represents the allocation table of a dynamic disk
  *  image. In dynamic disk images the space is allocated, in fixed size data
@@ -44,6 +48,23 @@ public abstract class DiskImageBlockTable {
 	 */
 	protected abstract boolean exists(int block);
 
+	/**
+	 * Returns the first cluster from {@code from} to {@code to} that is allocated. The
+	 *  default implementation checks the entries of the table one by one, and reads no
+	 *  data.
+	 * 
+	 * @param from	The first zero-based cluster number to check.
+	 * @param to	The cluster number after the last one to check.
+	 * @return	The first cluster allocated, or {@code to} if there is none.
+	 */
+	protected int nextMapped(int from, int to) {
+		for (int i = Math.max(from, 0); i < to; i++) {
+			if (exists(i))
+				return i;
+		}
+		return to;
+	}
+
 	/**
 	 * Marks the cluster number {@code block} of the virtual disk device as not
 	 *  needed. Clusters are not reorganized in the disk image by this method. 
@@ -52,6 +73,32 @@ public abstract class DiskImageBlockTable {
 	 */
 	protected abstract void free(int block);
 
+	/**
+	 * Maps the cluster number {@code block} of the virtual disk device, if not mapped,
+	 *  to a new data cluster of the disk image, without writing its data. The caller
+	 *  writes the whole data cluster at the offset returned.
+	 * 
+	 * @param block	The zero-based cluster number.
+	 * @return	The absolute offset of the data cluster inside the disk image.
+	 * @throws IOException if the cluster metadata can not be written.
+	 */
+	protected abstract long allocate(int block) throws IOException;
+
+	/**
+	 * Writes data of the clusters to the disk image file, through the data path of
+	 *  {@code image}. The table metadata is written through the image media.
+	 * 
+	 * @param image		The disk image of this table.
+	 * @param position	The file position where the write starts.
+	 * @param out		The data.
+	 * @param start		The start offset in the data.
+	 * @param length	The number of bytes to write.
+	 * @throws IOException if some I/O error occurs.
+	 */
+	protected static void writeData(DiskImage image, long position, byte[] out, int start, int length) throws IOException {
+		image.writeData(position, out, start, length);
+	}
+
 	/**
 	 * Counts the number of clusters that are allocated from {@code blockStart} 
 	 *  to {@code blockEnd - 1}.
@@ -68,4 +115,29 @@ public abstract class DiskImageBlockTable {
 		return count;
 	}
 
+	/**
+	 * Returns the allocated clusters from {@code blockStart} to {@code blockEnd - 1}
+	 *  sorted by ascending offset in the disk image.
+	 * 
+	 * @param blockStart	The starting block, inclusive.
+	 * @param blockEnd		The ending block, exclusive.
+	 * @return	The allocated block numbers in disk image order.
+	 */
+	int[] getBlocksInFileOrder(int blockStart, int blockEnd) {
+		Integer[] order = new Integer[countBlocksMapped(blockStart, blockEnd)];
+		for (int i = blockStart, c = 0; i < blockEnd; i++) {
+			if (exists(i)) order[c++] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer b1, Integer b2) {
+				return Long.compare(getOffset(b1), getOffset(b2));
+			}
+		});
+		int[] blocks = new int[order.length];
+		for (int c = 0; c < order.length; c++)
+			blocks[c] = order[c];
+		return blocks;
+	}
+
 }
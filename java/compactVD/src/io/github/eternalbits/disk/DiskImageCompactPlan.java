@@ -0,0 +1,324 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The cluster moves made by {@link DiskImage#compact()}, planned before any I/O from
+ *  the reverse map of the image. The moves are split in rounds, the image metadata
+ *  is updated after each round, and a move only writes to a cluster that is not
+ *  mapped by the metadata in the image. This is the same rule that makes a compact
+ *  safe to interrupt.
+ * <p>
+ * The strategies are:<ul>
+ *  <li>{@link #MINIMAL_MOVES} each hole, in ascending order, gets the last mapped
+ *   cluster. This is the fewest moves, in one round.</li>
+ *  <li>{@link #PRESERVE_ORDER} the same clusters are moved, but they fill the holes
+ *   in the order they are in the image, in one round.</li>
+ *  <li>{@link #DEFRAGMENT} all clusters are placed in virtual disk order. Clusters
+ *   that are in the way are moved to free space at the end of the image, so some
+ *   are moved twice, in a few rounds. Nothing is moved if there is no free space.</li>
+ *  <li>{@link #PUNCH_HOLES} nothing is moved. The holes are given back to the host
+ *   file system by a {@link HolePuncher}, and only the free clusters at the end of
+ *   the image are cut.</li>
+ * </ul>
+ */
+public class DiskImageCompactPlan {
+	/** Strategy -- each hole gets the last cluster of the image. */
+	public static final int MINIMAL_MOVES = 0;
+	/** Strategy -- the clusters moved keep their relative order. */
+	public static final int PRESERVE_ORDER = 1;
+	/** Strategy -- all clusters are placed in virtual disk order. */
+	public static final int DEFRAGMENT = 2;
+	/** Strategy -- the holes are punched in the image file, no cluster is moved. */
+	public static final int PUNCH_HOLES = 3;
+
+	private static final String[] STRATEGY_NAMES = {"MINIMAL", "ORDERED", "DEFRAG", "PUNCH"};
+
+	final int[] reverseMap;		// The reverse map before the moves
+	final int[] from;			// The cluster read by each move
+	final int[] to;				// The cluster written by each move
+	final int[] rounds;			// The end of each round in the moves
+	final int[] holes;			// The free clusters to punch, before the end
+	final int length;			// The length of each cluster in bytes
+
+	private final int strategy;
+	private final int end;
+
+	/**
+	 * Plans the moves to compact an image.
+	 *
+	 * @param reverseMap	A map of the clusters in the image to the virtual disk
+	 * 						clusters, with -1 when there is no data in the image.
+	 * 						This is the reverse of the block table.
+	 * @param length		The length of each cluster in the image, in bytes.
+	 * @param strategy		One of {@link #MINIMAL_MOVES}, {@link #PRESERVE_ORDER},
+	 * 						{@link #DEFRAGMENT} or {@link #PUNCH_HOLES}.
+	 */
+	public DiskImageCompactPlan(int[] reverseMap, int length, int strategy) {
+		if (strategy < 0 || strategy >= STRATEGY_NAMES.length)
+			throw new IllegalArgumentException(String.format("Compact strategy: %d", strategy));
+		this.reverseMap = reverseMap;
+		this.strategy = strategy;
+		this.length = length;
+
+		int[] at = reverseMap.clone();
+		Moves moves = new Moves(at.length);
+		switch (strategy) {
+		case MINIMAL_MOVES:
+			planMinimal(at, moves);
+			break;
+		case PRESERVE_ORDER:
+			planOrdered(at, moves);
+			break;
+		case DEFRAGMENT:
+			planDefragment(at, moves);
+			break;
+		default: // PUNCH_HOLES
+		}
+		from = Arrays.copyOf(moves.from, moves.count);
+		to = Arrays.copyOf(moves.to, moves.count);
+		rounds = Arrays.copyOf(moves.rounds, moves.roundCount);
+		end = endOf(at);
+		holes = strategy == PUNCH_HOLES? holesOf(at, end): new int[0];
+	}
+
+	/* A growing list of moves that are applied to the reverse map as added.
+	 */
+	private static class Moves {
+		int[] from, to, rounds = new int[4];
+		int count = 0, roundCount = 0;
+
+		Moves(int capacity) {
+			from = new int[Math.max(capacity, 4)];
+			to = new int[from.length];
+		}
+
+		void add(int[] at, int s, int d) {
+			if (count == from.length) {
+				from = Arrays.copyOf(from, count * 2);
+				to = Arrays.copyOf(to, count * 2);
+			}
+			from[count] = s;
+			to[count++] = d;
+			at[d] = at[s];
+			at[s] = -1;
+		}
+
+		void endRound() {
+			if (count == (roundCount == 0? 0: rounds[roundCount - 1]))
+				return;
+			if (roundCount == rounds.length)
+				rounds = Arrays.copyOf(rounds, roundCount * 2);
+			rounds[roundCount++] = count;
+		}
+	}
+
+	private static void planMinimal(int[] at, Moves moves) {
+		for (int i = 0, s = at.length; i < s; i++) {
+			if (at[i] == -1) { // Found a "hole" in the image
+				for (s = s - 1; s > i; s--) {
+					if (at[s] != -1) { // This is the last mapped cluster
+						moves.add(at, s, i);
+						break;
+					}
+				}
+			}
+		}
+		moves.endRound();
+	}
+
+	private static void planOrdered(int[] at, Moves moves) {
+		int mapped = countMapped(at);
+		for (int i = 0, s = mapped; i < mapped; i++) {
+			if (at[i] == -1) {
+				while (at[s] == -1) s++;
+				moves.add(at, s++, i);
+			}
+		}
+		moves.endRound();
+	}
+
+	/* Each round moves the clusters whose place is free in the metadata of the image.
+	 *  A cluster is also moved to free space at the end of the image if its place is
+	 *  taken by a cluster that does not move in this round, or the rounds would follow
+	 *  each chain of clusters one at a time.
+	 */
+	private static void planDefragment(int[] at, Moves moves) {
+		int mapped = countMapped(at);
+		int[] place = new int[at.length];	// The place of the cluster at each index
+		Integer[] order = new Integer[mapped];
+		for (int i = 0, c = 0; i < at.length; i++) {
+			place[i] = -1;
+			if (at[i] != -1) order[c++] = i;
+		}
+		final int[] virtual = at;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer c1, Integer c2) {
+				return Integer.compare(virtual[c1], virtual[c2]);
+			}
+		});
+		for (int r = 0; r < mapped; r++)
+			place[order[r]] = r;
+
+		boolean[] moving = new boolean[at.length];
+		int[] next = new int[at.length];
+		while (true) {
+			int first = moves.count, planned = 0;
+			Arrays.fill(moving, false);
+			Arrays.fill(next, -1);
+			for (int i = 0; i < at.length; i++) {
+				if (at[i] != -1 && place[i] != i && at[place[i]] == -1) {
+					next[place[i]] = i;
+					moving[i] = true;
+					planned++;
+				}
+			}
+			for (int i = 0, free = mapped; i < mapped; i++) {
+				if (at[i] != -1 && place[i] != i && !moving[i] && !moving[place[i]]) {
+					while (free < at.length && (at[free] != -1 || next[free] != -1)) free++;
+					if (free == at.length)
+						break;
+					next[free] = i;
+					moving[i] = true;
+					planned++;
+				}
+			}
+			if (planned == 0)
+				break;
+
+			int[] moved = new int[at.length];
+			Arrays.fill(moved, -1);
+			for (int d = 0; d < at.length; d++) {
+				if (next[d] != -1) {
+					moved[d] = place[next[d]];
+					moves.add(at, next[d], d);
+				}
+			}
+			for (int k = first; k < moves.count; k++) {
+				place[moves.to[k]] = moved[moves.to[k]];
+				place[moves.from[k]] = -1;
+			}
+			moves.endRound();
+		}
+	}
+
+	private static int countMapped(int[] at) {
+		int count = 0;
+		for (int v: at) {
+			if (v != -1) count++;
+		}
+		return count;
+	}
+
+	private static int[] holesOf(int[] at, int end) {
+		int[] holes = new int[end - countMapped(at)];
+		for (int i = 0, h = 0; i < end; i++) {
+			if (at[i] == -1) holes[h++] = i;
+		}
+		return holes;
+	}
+
+	/* Returns the index after the last mapped cluster.
+	 */
+	static int endOf(int[] at) {
+		int s = at.length;
+		while (s > 0 && at[s - 1] == -1) s--;
+		return s;
+	}
+
+	public int getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Returns the number of cluster moves, a cluster can be moved twice.
+	 *
+	 * @return	The number of moves.
+	 */
+	public int getMoves() {
+		return from.length;
+	}
+
+	/**
+	 * Returns the number of rounds, the image metadata is updated after each one.
+	 *
+	 * @return	The number of rounds.
+	 */
+	public int getRounds() {
+		return rounds.length;
+	}
+
+	/**
+	 * Returns the number of free clusters punched, before the last cluster mapped.
+	 *
+	 * @return	The number of holes, zero if the strategy is not {@link #PUNCH_HOLES}.
+	 */
+	public int getHoles() {
+		return holes.length;
+	}
+
+	/**
+	 * Returns the cost estimate of the plan, the bytes read and then written.
+	 *
+	 * @return	The number of bytes moved.
+	 */
+	public long getBytesMoved() {
+		return (long)from.length * length;
+	}
+
+	/**
+	 * Returns the space in the image given back when the plan is complete.
+	 *
+	 * @return	The number of bytes after the last cluster mapped, plus the bytes
+	 *  of the holes. A hole may have been punched before.
+	 */
+	public long getBytesFreed() {
+		return (long)(reverseMap.length - end + holes.length) * length;
+	}
+
+	@Override
+	public String toString() {
+		if (strategy == PUNCH_HOLES)
+			return String.format("%s: %d holes, %d bytes freed", nameOf(strategy),
+					getHoles(), getBytesFreed());
+		return String.format("%s: %d moves, %d bytes in %d rounds, %d bytes freed", nameOf(strategy),
+				getMoves(), getBytesMoved(), getRounds(), getBytesFreed());
+	}
+
+	/**
+	 * Returns the strategy with a name.
+	 *
+	 * @param name	The strategy name: MINIMAL, ORDERED, DEFRAG or PUNCH.
+	 * @return	The strategy, or -1 if {@code name} is unknown.
+	 */
+	public static int strategyOf(String name) {
+		for (int i = 0; i < STRATEGY_NAMES.length; i++) {
+			if (STRATEGY_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	public static String nameOf(int strategy) {
+		return STRATEGY_NAMES[strategy];
+	}
+
+}
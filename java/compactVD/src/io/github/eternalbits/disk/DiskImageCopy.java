@@ -0,0 +1,524 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies the data blocks of a source {@link DiskImage} to a target image in a
+ *  pipeline. Reader threads read the source, optional transform threads see
+ *  each block, and the calling thread writes the target, so source reads overlap
+ *  target writes. The stages are linked by bounded queues of pooled buffers, and
+ *  blocks are written in ascending order, exactly as in a sequential copy.
+ * <p>
+ * With several readers, blocks are read concurrently and may complete out of
+ *  order. A reorder buffer releases them in ascending order, so the target
+ *  allocates its blocks in the same order for any number of readers. The number
+ *  of buffers, and the memory in use, is limited by a byte budget.
+ * <p>
+ * The copy order is the virtual block order, or the order of the data in the
+ *  source file. The target block tables append each new block to the image, so
+ *  in source file order both the source reads and the target writes are
+ *  sequential, and the target maps the blocks wherever they were appended.
+ * <p>
+ * Blocks filled with zeros are found by the readers, at the target block size,
+ *  and are not written to sparse targets. The source is read only once, there is
+ *  no need to search it for zeroed blocks before the copy.
+ * <p>
+ * The calling thread must own the monitors of the target and the source. If it
+ *  is interrupted, the copy stops after the block being written, and all stages
+ *  end before {@link #run()} returns, with the interrupt status set.
+ */
+class DiskImageCopy {
+	/**
+	 * A stage between the reader and the writer. Each block is seen in copy order
+	 *  by a single thread.
+	 */
+	interface Transform {
+		/**
+		 * Processes the data of one block.
+		 *
+		 * @param block		The block with data and the block number.
+		 * @throws IOException if some I/O error occurs.
+		 */
+		void apply(Block block) throws IOException;
+
+		/**
+		 * Called after the last block of a complete copy.
+		 *
+		 * @throws IOException if some I/O error occurs.
+		 */
+		void end() throws IOException;
+	}
+
+	/** A pooled buffer with the data of a block. */
+	static class Block {
+		final byte[] data;
+		int number;			// The block number in the virtual disk
+		int sequence;		// The order of the block in the copy
+		boolean write;		// The block is written to the target if true
+		long transfer;		// The source file offset of a block transferred, or -1
+
+		Block(int size) {
+			data = BufferPool.take(size);
+		}
+	}
+
+	private static final Block END = new Block(0);
+
+	private static final int PROBE_SIZE = 4096;	// Size of each probe read before a transfer
+
+	private final DiskImage target;
+	private final DiskImage source;
+	private final DiskImage.Progress progress;
+	private final boolean skipEmpty;
+	private final int size;
+	private final int count;
+	private final int readers;
+	private final int poolSize;
+	private final boolean fileOrder;
+
+	private final List<Transform> transforms = new ArrayList<Transform>();
+	private final BlockingQueue<Block> free;
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+	private volatile boolean stop = false;
+
+	private CacheAdvice readAdvice = null;
+	private CacheAdvice writeAdvice = null;
+	private BlockTransfer transfer = null;
+
+	private final Map<Integer, Block> pending = new HashMap<Integer, Block>();
+	private int nextSequence = 0;		// The next block to leave the reorder buffer
+
+	/**
+	 * Prepares a copy of all blocks from {@code source} to {@code target}.
+	 *
+	 * @param target	The image to write, with {@code diskPointer} changed by the copy.
+	 * @param source	The image to read, with the same disk size.
+	 * @param progress	Steps one for each block written.
+	 * @param skipEmpty	If {@code true} blocks without data in the source, or filled
+	 *  with zeros, are not copied.
+	 * @param readers	The number of threads reading the source.
+	 * @param budget	The maximum number of bytes in block buffers, at least two blocks
+	 *  are always used.
+	 * @param fileOrder	If {@code true} blocks are copied in source file order, otherwise
+	 *  in ascending block order.
+	 */
+	DiskImageCopy(DiskImage target, DiskImage source, DiskImage.Progress progress, boolean skipEmpty,
+			int readers, long budget, boolean fileOrder) {
+		this.target = target;
+		this.source = source;
+		this.progress = progress;
+		this.skipEmpty = skipEmpty;
+		this.size = target.getImageBlockSize();
+		this.count = target.getImageBlocksCount();
+		this.readers = Math.max(1, readers);
+		this.poolSize = (int)Math.max(2, Math.min(budget / size, Math.max(count, 2)));
+		this.free = new ArrayBlockingQueue<Block>(poolSize);
+		this.fileOrder = fileOrder;
+	}
+
+	/**
+	 * Adds a transform stage, with its own thread, after the stages already added.
+	 *
+	 * @param transform	The stage to add.
+	 */
+	void addTransform(Transform transform) {
+		transforms.add(transform);
+	}
+
+	/**
+	 * Sets the cache advice for the data read from the source and for the data written
+	 *  to the target. The caller ends them after the copy.
+	 *
+	 * @param read	The advice for the source, or {@code null}.
+	 * @param written	The advice for the target, or {@code null}.
+	 */
+	void setCacheAdvice(CacheAdvice read, CacheAdvice written) {
+		readAdvice = read;
+		writeAdvice = written;
+	}
+
+	/**
+	 * Sets the transfer of the blocks stored in one piece in the source, when a probe
+	 *  finds data in them, from the source file to the target file.
+	 *
+	 * @param transfer	The transfer, or {@code null} to read all blocks.
+	 */
+	void setTransfer(BlockTransfer transfer) {
+		this.transfer = transfer;
+	}
+
+	/**
+	 * Runs the copy. The target is written by the calling thread.
+	 *
+	 * @throws IOException if some I/O error occurs in any stage.
+	 */
+	void run() throws IOException {
+		for (int i = 0; i < poolSize; i++)
+			free.add(new Block(size));
+
+		final int[] blocks = listBlocks();
+		final AtomicInteger claim = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger(readers);
+		List<Thread> stages = new ArrayList<Thread>();
+		final BlockingQueue<Block> read = newQueue();
+		for (int r = 0; r < readers; r++) {
+			stages.add(newStage(new Runnable() {
+				@Override
+				public void run() {
+					readSource(blocks, claim, read, running);
+				}
+			}, "CompactVD read "+r));
+		}
+		BlockingQueue<Block> queue = read;
+		for (Transform transform: transforms) {
+			final BlockingQueue<Block> in = queue;
+			final BlockingQueue<Block> out = newQueue();
+			stages.add(newStage(new Runnable() {
+				@Override
+				public void run() {
+					transform(transform, in, out);
+				}
+			}, "CompactVD transform"));
+			queue = out;
+		}
+		for (Thread stage: stages)
+			stage.start();
+
+		boolean interrupted = false, ended = false;
+		try {
+			ended = writeTarget(queue);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			stop = true;
+			if (!ended)
+				interrupted |= drain(queue);
+		}
+
+		for (Thread stage: stages) {
+			while (stage.isAlive()) {
+				try {
+					stage.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		for (Block block; (block = free.poll()) != null; )
+			BufferPool.give(block.data);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	/* The queues have room for all pooled blocks and the end mark, puts never block.
+	 */
+	private BlockingQueue<Block> newQueue() {
+		return new ArrayBlockingQueue<Block>(poolSize + 1);
+	}
+
+	private Thread newStage(Runnable runnable, String name) {
+		Thread stage = new Thread(runnable, name);
+		stage.setDaemon(true);
+		return stage;
+	}
+
+	private int[] listBlocks() {
+		int[] blocks;
+		if (skipEmpty) {
+			blocks = source.getDataBlocks(size, count);
+		} else {
+			blocks = new int[count];
+			for (int i = 0; i < count; i++)
+				blocks[i] = i;
+		}
+		if (fileOrder && source.imageTable != null)
+			sortInFileOrder(blocks);
+		return blocks;
+	}
+
+	/**
+	 * Sorts the blocks by the source file offset of their first byte. Blocks that
+	 *  are not mapped in the source are read as zeros and come first. The sort is
+	 *  stable, blocks in the same source block keep their ascending order.
+	 */
+	private void sortInFileOrder(int[] blocks) {
+		final long[] offset = new long[count];
+		Integer[] order = new Integer[blocks.length];
+		for (int k = 0; k < blocks.length; k++) {
+			long start = (long)blocks[k] * size;
+			offset[blocks[k]] = sourceOffset(start);
+			order[k] = blocks[k];
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer b1, Integer b2) {
+				return Long.compare(offset[b1], offset[b2]);
+			}
+		});
+		for (int k = 0; k < blocks.length; k++)
+			blocks[k] = order[k];
+	}
+
+	/**
+	 * Returns the offset in the source file of the disk byte at {@code start}, or -1 if
+	 *  it is not mapped.
+	 */
+	private long sourceOffset(long start) {
+		int sourceSize = source.getImageBlockSize();
+		long mapped = source.imageTable.getOffset((int)(start / sourceSize));
+		return mapped == -1? -1: mapped + start % sourceSize;
+	}
+
+	/**
+	 * Reads the source blocks. Each reader takes a free buffer before it claims the
+	 *  next block to read: the block the writer is waiting for always has a buffer,
+	 *  and the pool can't be exhausted by blocks waiting in the reorder buffer.
+	 */
+	private void readSource(int[] blocks, AtomicInteger claim, BlockingQueue<Block> out, AtomicInteger running) {
+		Block block = null;
+		try {
+			while (!stop) {
+				block = free.take();
+				int k = claim.getAndIncrement();
+				if (stop || k >= blocks.length)
+					break;
+				long offset = (long)blocks[k] * size;
+				block.transfer = transfer == null? -1: source.getFileOffset(offset, size);
+				int read = size;
+				if (block.transfer == -1 || !isDataProbe(offset, block.data)) {
+					block.transfer = -1;
+					read = readBlock(offset, block.data);
+				}
+				if (readAdvice != null && source.imageTable != null && read > 0) {
+					long mapped = sourceOffset(offset);
+					if (mapped != -1)
+						readAdvice.read(mapped, read);
+				}
+				block.number = blocks[k];
+				block.sequence = k;
+				block.write = block.transfer != -1 || !skipEmpty || !DiskImage.isZero(block.data, 0, size);
+				reorder(block, out);
+				block = null;
+			}
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+			stop = true;
+		} catch (InterruptedException e) {
+			stop = true;
+		} finally {
+			if (block != null)			// Other readers may be waiting for it
+				free.add(block);
+			if (running.decrementAndGet() == 0)
+				out.add(END);
+		}
+	}
+
+	private int readBlock(long offset, byte[] data) throws IOException {
+		int read = source.readAll(offset, data, 0, size);
+		if (read < size) {
+			if (read < 0 || offset + read < target.getDiskSize())
+				throw new EOFException(source.toString());
+			Arrays.fill(data, read, size, (byte)0);
+		}
+		return read;
+	}
+
+	/* Reads the first, middle and last PROBE_SIZE bytes of a block to their place in
+	 *  data, until one is not zero. A block with data found this way is transferred.
+	 */
+	private boolean isDataProbe(long offset, byte[] data) throws IOException {
+		if (size < PROBE_SIZE * 4)
+			return false;
+		int middle = size / 2 / PROBE_SIZE * PROBE_SIZE;
+		for (int start: new int[] {0, middle, size - PROBE_SIZE}) {
+			if (source.readAll(offset + start, data, start, PROBE_SIZE) != PROBE_SIZE)
+				return false;
+			if (!DiskImage.isZero(data, start, PROBE_SIZE))
+				return true;
+		}
+		return false;
+	}
+
+	/* Releases the blocks in sequence, the queue never blocks.
+	 */
+	private void reorder(Block block, BlockingQueue<Block> out) {
+		synchronized (pending) {
+			pending.put(block.sequence, block);
+			for (Block next; (next = pending.remove(nextSequence)) != null; nextSequence++)
+				out.add(next);
+		}
+	}
+
+	private void transform(Transform transform, BlockingQueue<Block> in, BlockingQueue<Block> out) {
+		try {
+			for (Block block = in.take(); block != END; block = in.take()) {
+				if (!stop) {
+					try {
+						transform.apply(block);
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+						stop = true;
+					}
+				}
+				out.add(block);
+			}
+			if (!stop)
+				transform.end();
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+			stop = true;
+		} catch (InterruptedException e) {
+			stop = true;
+		} finally {
+			out.add(END);
+		}
+	}
+
+	/**
+	 * Writes the blocks to the target until the end mark is found. Returns {@code false}
+	 *  if some other stage stopped the copy before the end mark.
+	 */
+	private boolean writeTarget(BlockingQueue<Block> in) throws IOException, InterruptedException {
+		Thread thisThread = Thread.currentThread();
+		for (Block block = in.take(); block != END; block = in.take()) {
+			try {
+				if (thisThread.isInterrupted())
+					throw new InterruptedException();
+				if (stop)
+					return false;
+				if (block.write) {
+					target.diskPointer = (long)block.number * size;
+					if (block.transfer != -1) {
+						target.transferBlock(block.number, transfer, block.transfer);
+						target.diskPointer += size;
+					} else {
+						target.write(block.data, 0, size);
+					}
+					target.touched = true;
+					if (writeAdvice != null)
+						writeAdvice.written(target.media.getFilePointer() - size, size);
+				}
+				progress.step(1);
+			} finally {
+				free.add(block);
+			}
+		}
+		target.diskPointer = (long)count * size;
+		return true;
+	}
+
+	/**
+	 * Returns all blocks to the pool until the end mark is found. Returns {@code true}
+	 *  if the calling thread was interrupted, the interrupt status is cleared.
+	 */
+	private boolean drain(BlockingQueue<Block> in) {
+		boolean interrupted = Thread.interrupted();
+		while (true) {
+			try {
+				for (Block block = in.take(); block != END; block = in.take())
+					free.add(block);
+				return interrupted;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+	}
+
+	/**
+	 * A transform that computes a message digest of the virtual disk copied. Blocks
+	 *  that are not copied are digested as zeros, the result is the same as the
+	 *  digest of a raw image of the copy. The transform needs the blocks in ascending
+	 *  order, a copy in file order is digested by {@link #digest(DiskImage)} instead.
+	 */
+	static class Digest implements Transform {
+		private final MessageDigest digest;
+		private final int size;
+		private final int count;
+		private final long diskSize;
+		private byte[] zeros = null;
+		private int next = 0;
+
+		Digest(MessageDigest digest, DiskImage target) {
+			this.digest = digest;
+			this.size = target.getImageBlockSize();
+			this.count = target.getImageBlocksCount();
+			this.diskSize = target.getDiskSize();
+		}
+
+		@Override
+		public void apply(Block block) {
+			zeros(block.number);
+			update(block.data, block.number);
+			next = block.number + 1;
+		}
+
+		@Override
+		public void end() {
+			zeros(count);
+			BufferPool.give(zeros);
+			zeros = null;
+		}
+
+		/**
+		 * Digests all blocks of {@code image} in ascending order, reading them
+		 *  from the image.
+		 *
+		 * @param image	The image copied, with the same disk size and block size.
+		 * @throws IOException if some I/O error occurs.
+		 */
+		void digest(DiskImage image) throws IOException {
+			byte[] buffer = BufferPool.take(size);
+			for (; next < count; next++) {
+				int read = image.readAll((long)next * size, buffer, 0, size);
+				Arrays.fill(buffer, Math.max(read, 0), size, (byte)0);
+				update(buffer, next);
+			}
+			BufferPool.give(buffer);
+		}
+
+		private void zeros(int limit) {
+			for (; next < limit; next++) {
+				if (zeros == null)
+					zeros = BufferPool.takeZeroed(size);
+				update(zeros, next);
+			}
+		}
+
+		private void update(byte[] data, int number) {
+			digest.update(data, 0, (int)Math.min(size, diskSize - (long)number * size));
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Abstract class that represents the data path of a {@link DiskImage} file.
+ *  Reads and writes are positional: the offset is an explicit parameter and
+ *  no file pointer is shared between callers, so a media that supports it
+ *  can serve several threads at once without locking.
+ * <p>
+ * The image metadata is still written through the image {@code RandomAccessFile},
+ *  the media is used for the image data and for metadata reads.
+ * <p>
+ */
+public abstract class DiskImageMedia implements AutoCloseable {
+
+	/** Media type -- seek and read on the image {@code RandomAccessFile}, one caller at a time. */
+	public static final int RANDOM_ACCESS = 0;
+	/** Media type -- positional reads and writes on a {@code FileChannel}, without locking. */
+	public static final int FILE_CHANNEL = 1;
+	/** Media type -- memory mapped reads for read-only images, {@code FILE_CHANNEL} otherwise. */
+	public static final int MAPPED_READ = 2;
+	/** Media type -- direct reads around the host page cache, {@code FILE_CHANNEL} writes. */
+	public static final int DIRECT_READ = 3;
+	/** Media type -- direct writes of the image data around the host page cache, for a
+	 *  copy. It is not a preferred type, and images are not opened with it. */
+	public static final int DIRECT_WRITE = 4;
+
+	private static final String[] TYPE_NAMES = {"FILE", "CHANNEL", "MAPPED", "DIRECT", "DIRECT_WRITE"};
+
+	private static volatile int preferredType = FILE_CHANNEL;
+
+	/**
+	 * Sets the media type used by disk images opened or created after this call.
+	 *
+	 * @param type	One of {@link #RANDOM_ACCESS}, {@link #FILE_CHANNEL}, {@link #MAPPED_READ}
+	 *  or {@link #DIRECT_READ}.
+	 */
+	public static void setPreferredType(int type) {
+		if (type < RANDOM_ACCESS || type > DIRECT_READ)
+			throw new IllegalArgumentException(String.format("Media type: %d", type));
+		preferredType = type;
+	}
+
+	public static int getPreferredType() {
+		return preferredType;
+	}
+
+	/**
+	 * Returns the media type with the name {@code name}, ignoring case.
+	 *
+	 * @param name	The media type name: FILE, CHANNEL, MAPPED or DIRECT.
+	 * @return	The media type, or {@code -1} if the name is unknown.
+	 */
+	public static int typeOf(String name) {
+		for (int i = RANDOM_ACCESS; i <= DIRECT_READ; i++) {
+			if (TYPE_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a media of the preferred type for the {@code image} file. The image
+	 *  {@code RandomAccessFile} must be already open.
+	 *
+	 * @param image	The disk image that owns the media.
+	 * @param file	The image file.
+	 * @param mode	The access mode of the image file, "r" or "rw".
+	 * @return	A new media for the image data.
+	 * @throws IOException if some I/O error occurs.
+	 */
+	public static DiskImageMedia open(DiskImage image, File file, String mode) throws IOException {
+		switch (preferredType) {
+		case DIRECT_READ:
+			return new DirectFileMedia(image, file, mode);
+		case MAPPED_READ:
+			if (mode.equals("r"))
+				return new MappedFileMedia(image, file);
+			return new FileChannelMedia(image, file, mode);
+		case FILE_CHANNEL:
+			return new FileChannelMedia(image, file, mode);
+		default:
+			return new RandomAccessMedia(image);
+		}
+	}
+
+	/**
+	 * Reads up to {@code length} bytes of the image file, starting at {@code position},
+	 *  into an array of bytes. The number of bytes read may be less than requested.
+	 *
+	 * @param	position	the file position where the read starts.
+	 * @param	in		the byte array into which the data is read.
+	 * @param	start	the start offset in the byte array.
+	 * @param	length	the maximum number of bytes to read.
+	 * @return	the number of bytes read, or {@code -1} if {@code position}
+	 *			 is at end of file.
+	 * @throws	IOException if some I/O error occurs.
+	 */
+	public abstract int read(long position, byte[] in, int start, int length) throws IOException;
+
+	/**
+	 * Reads exactly {@code length} bytes of the image file, starting at {@code position},
+	 *  into an array of bytes.
+	 *
+	 * @param	position	the file position where the read starts.
+	 * @param	in		the byte array into which the data is read.
+	 * @param	start	the start offset in the byte array.
+	 * @param	length	the number of bytes to read.
+	 * @throws	EOFException if the end of file is reached before all bytes are read.
+	 * @throws	IOException if some other I/O error occurs.
+	 */
+	public void readFully(long position, byte[] in, int start, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int some = read(position + read, in, start + read, length - read);
+			if (some < 0)
+				throw new EOFException();
+			read += some;
+		}
+	}
+
+	/**
+	 * Writes {@code length} bytes from array {@code out} to the image file,
+	 *  starting at {@code position}.
+	 *
+	 * @param	position	the file position where the write starts.
+	 * @param	out		the data.
+	 * @param	start	the start offset in the data.
+	 * @param	length	the number of bytes to write.
+	 * @throws	IOException if some I/O error occurs.
+	 */
+	public abstract void write(long position, byte[] out, int start, int length) throws IOException;
+
+	/**
+	 * Returns the media type, one of {@link #RANDOM_ACCESS}, {@link #FILE_CHANNEL},
+	 *  {@link #MAPPED_READ}, {@link #DIRECT_READ} or {@link #DIRECT_WRITE}.
+	 *
+	 * @return	The media type.
+	 */
+	public abstract int getType();
+
+	@Override
+	public abstract void close() throws IOException;
+
+	@Override
+	public String toString() {
+		return TYPE_NAMES[getType()];
+	}
+
+}
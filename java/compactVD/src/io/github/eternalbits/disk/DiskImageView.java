@@ -37,6 +37,8 @@ public class DiskImageView {
 	public final int blocksMapped;
 	public final Integer blocksUnused;
 	public final Integer blocksZeroed;
+	public final Integer blocksProbed;
+	public final Integer probeHits;
 	public final String diskLayout;
 	
 	public final List<DiskFileSystemView> fileSystems;
@@ -53,6 +55,8 @@ public class DiskImageView {
 		blocksMapped	= image.getImageBlocksMapped();
 		blocksUnused 	= image.blocksUnused;
 		blocksZeroed 	= image.blocksZeroed;
+		blocksProbed	= image.blocksProbed;
+		probeHits		= image.probeHits;
 		
 		diskLayout		= image.getLayout() == null? null: image.getLayout().getType();
 		List<DiskFileSystemView> local = new ArrayList<DiskFileSystemView>();
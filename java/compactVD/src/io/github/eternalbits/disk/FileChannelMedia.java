@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link DiskImageMedia} with positional reads and writes on a {@code FileChannel}.
+ *  Any number of threads can read at the same time.
+ * <p>
+ * The channel is not the image file channel: a {@code FileChannel} is closed when
+ *  a thread is interrupted in the middle of an operation, and the image file must
+ *  remain open to finish a journaled update. If that happens, the operation
+ *  is completed on the image file and the channel is reopened by the next
+ *  thread that is not interrupted.
+ */
+class FileChannelMedia extends DiskImageMedia {
+
+	private final File file;
+	private final boolean readOnly;
+	private final RandomAccessMedia fallback;
+	private volatile FileChannel channel;
+
+	FileChannelMedia(DiskImage image, File file, String mode) throws IOException {
+		this.file = file;
+		this.readOnly = mode.equals("r");
+		fallback = new RandomAccessMedia(image);
+		channel = openChannel();
+	}
+
+	private FileChannel openChannel() throws IOException {
+		return readOnly? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+				: FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Returns the channel, or {@code null} if the current thread is interrupted.
+	 */
+	FileChannel getChannel() throws IOException {
+		if (Thread.currentThread().isInterrupted())
+			return null;
+		FileChannel fc = channel;
+		if (fc == null || !fc.isOpen()) {
+			synchronized (this) {
+				if (channel == null)
+					throw new ClosedChannelException();
+				if (!channel.isOpen())
+					channel = openChannel();
+				fc = channel;
+			}
+		}
+		return fc;
+	}
+
+	@Override
+	public int read(long position, byte[] in, int start, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		FileChannel fc = getChannel();
+		if (fc != null) {
+			try {
+				return fc.read(ByteBuffer.wrap(in, start, length), position);
+			} catch (ClosedChannelException e) {
+				if (channel == null) throw e;
+			}
+		}
+		return fallback.read(position, in, start, length);
+	}
+
+	@Override
+	public void write(long position, byte[] out, int start, int length) throws IOException {
+		FileChannel fc = getChannel();
+		ByteBuffer bb = ByteBuffer.wrap(out, start, length);
+		if (fc != null) {
+			try {
+				while (bb.hasRemaining())
+					fc.write(bb, position + bb.position() - start);
+				return;
+			} catch (ClosedChannelException e) {
+				if (channel == null) throw e;
+			}
+		}
+		fallback.write(position + bb.position() - start, out, bb.position(), bb.remaining());
+	}
+
+	@Override
+	public int getType() {
+		return FILE_CHANNEL;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+}
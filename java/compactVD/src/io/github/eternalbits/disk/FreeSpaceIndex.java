@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The free space of a file system that records it as a list of extents, not as a
+ *  bitmap, such as the free space trees of XFS or the extent tree of Btrfs. The
+ *  file system adds the free extents it finds, in any order, and the index sorts
+ *  and merges them on the first query. Queries are binary searches.
+ * <p>
+ * The queries have the same meaning as {@link DiskFileSystem#findAllocated(long, long)}
+ *  and {@link DiskFileSystem#findFree(long, long)}: the bytes out of the extents
+ *  added are allocated.
+ */
+public class FreeSpaceIndex {
+
+	private long[] start = new long[64];	// The first byte of each free extent
+	private long[] end = new long[64];		// The byte after each free extent
+	private int count = 0;
+	private boolean sorted = true;
+	private boolean merged = true;
+
+	/**
+	 * Adds a free extent.
+	 *
+	 * @param offset	The offset in the file system of the first byte free.
+	 * @param length	The number of bytes free.
+	 */
+	public synchronized void add(long offset, long length) {
+		if (length <= 0)
+			return;
+		if (count == start.length) {
+			start = Arrays.copyOf(start, Math.max(64, count * 2));
+			end = Arrays.copyOf(end, start.length);
+		}
+		if (count > 0 && offset < start[count - 1])
+			sorted = false;
+		start[count] = offset;
+		end[count] = offset + length;
+		count++;
+		merged = false;
+	}
+
+	/**
+	 * Removes bytes from the free extents, such as areas reserved by the file system
+	 *  that are in use but not recorded as such. Each call goes over all extents.
+	 *
+	 * @param offset	The offset in the file system of the first byte in use.
+	 * @param length	The number of bytes in use.
+	 */
+	public synchronized void remove(long offset, long length) {
+		if (length <= 0)
+			return;
+		sort();
+		long stop = offset + length;
+		long[] byStart = new long[count + 1], byEnd = new long[count + 1];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (start[i] < offset) {
+				byStart[n] = start[i];
+				byEnd[n++] = Math.min(end[i], offset);
+			}
+			if (end[i] > stop) {
+				byStart[n] = Math.max(start[i], stop);
+				byEnd[n++] = end[i];
+			}
+		}
+		start = byStart;
+		end = byEnd;
+		count = n;
+	}
+
+	/**
+	 * Returns the total number of bytes free.
+	 *
+	 * @return	The sum of the free extents, merged.
+	 */
+	public synchronized long getFreeBytes() {
+		sort();
+		long free = 0;
+		for (int i = 0; i < count; i++)
+			free += end[i] - start[i];
+		return free;
+	}
+
+	/**
+	 * Returns the first byte from {@code from} to {@code to} that is not in a free extent.
+	 *
+	 * @param from	The offset in the file system of the first byte to check.
+	 * @param to	The offset after the last byte to check.
+	 * @return	The first byte allocated, or {@code to} if there is none.
+	 */
+	public synchronized long findAllocated(long from, long to) {
+		if (from >= to)
+			return to;
+		int i = find(from);
+		if (i < 0 || end[i] <= from)
+			return from;
+		return Math.min(to, end[i]);
+	}
+
+	/**
+	 * Returns the first byte from {@code from} to {@code to} that is in a free extent.
+	 *
+	 * @param from	The offset in the file system of the first byte to check.
+	 * @param to	The offset after the last byte to check.
+	 * @return	The first byte free, or {@code to} if there is none.
+	 */
+	public synchronized long findFree(long from, long to) {
+		if (from >= to)
+			return to;
+		int i = find(from);
+		if (i >= 0 && end[i] > from)
+			return from;
+		return i + 1 < count? Math.min(to, Math.max(from, start[i + 1])): to;
+	}
+
+	/* The index of the last extent that starts at or before offset, or -1.
+	 */
+	private int find(long offset) {
+		sort();
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (start[middle] <= offset)
+				low = middle + 1;
+			else high = middle - 1;
+		}
+		return high;
+	}
+
+	/* Sorts the extents by offset, and merges the ones that touch or overlap.
+	 */
+	private void sort() {
+		if (merged)
+			return;
+		if (!sorted) {
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer e1, Integer e2) {
+					return Long.compare(start[e1], start[e2]);
+				}
+			});
+			long[] byStart = new long[count], byEnd = new long[count];
+			for (int i = 0; i < count; i++) {
+				byStart[i] = start[order[i]];
+				byEnd[i] = end[order[i]];
+			}
+			start = byStart;
+			end = byEnd;
+			sorted = true;
+		}
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (n > 0 && start[i] <= end[n - 1]) {
+				end[n - 1] = Math.max(end[n - 1], end[i]);
+			} else {
+				start[n] = start[i];
+				end[n] = end[i];
+				n++;
+			}
+		}
+		count = n;
+		merged = true;
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Gives ranges of a file back to the host file system. A range becomes a hole that
+ *  reads as zeros and takes no space, and the file length is not changed. Ranges can
+ *  also be allocated ahead of the writes, with {@link #allocate(File, long, long)}.
+ * <p>
+ * The Java runtime has no call for this, so the {@code fallocate} command of util-linux
+ *  is run with {@code --punch-hole}. This works on Linux hosts, in the file systems
+ *  that support {@code FALLOC_FL_PUNCH_HOLE}: ext4, xfs, btrfs and tmpfs among others.
+ * <p>
+ * Each process costs a fork of the Java runtime, some milliseconds. A fragmented image
+ *  can have many thousands of runs to punch, so {@link #punch(long[], long[], int)}
+ *  gives many runs to one shell, that runs {@code fallocate} for each of them.
+ * <p>
+ * A file system can take the call and still not punch inside a file, so the support
+ *  is tested on a file of its own, written with data: the hole must read as zeros,
+ *  and the data around it must not change.
+ */
+public class HolePuncher {
+	private static final String FALLOCATE = "fallocate";
+	private static final int PROBE_LENGTH = 64 * 1024;
+	private static final String PUNCH_LOOP = "while read o l; do "
+			+ FALLOCATE + " --punch-hole --offset \"$o\" --length \"$l\" \"$0\" || exit 1; done";
+
+	/** The number of runs that {@link #punch(long[], long[], int)} takes at most. */
+	public static final int MAX_RUNS = 1024;
+
+	private final File file;
+
+	private HolePuncher(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns a hole puncher for {@code file}, or {@code null} if the host can not punch
+	 *  holes in it. The test punches a hole in the data of a temporary file, in the same
+	 *  directory, and reads it back.
+	 *
+	 * @param file	The file, that must exist.
+	 * @return	A hole puncher, or {@code null} if holes are not supported.
+	 */
+	public static HolePuncher open(File file) {
+		if (!System.getProperty("os.name").toLowerCase().startsWith("linux") || !file.isFile())
+			return null;
+		File probe = null;
+		try {
+			probe = File.createTempFile("punch", ".tmp", file.getAbsoluteFile().getParentFile());
+			return punchesData(probe)? new HolePuncher(file): null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+		finally {
+			if (probe != null)
+				probe.delete();
+		}
+	}
+
+	/* Writes three ranges of data, punches the middle one and checks that it reads as
+	 *  zeros, with the others unchanged and the same length. The data is synced first,
+	 *  or some file systems would only drop the pages not yet written.
+	 */
+	private static boolean punchesData(File probe) throws IOException {
+		byte[] data = new byte[3 * PROBE_LENGTH];
+		Arrays.fill(data, (byte)0xA5);
+		try (RandomAccessFile raf = new RandomAccessFile(probe, "rw")) {
+			raf.write(data);
+			raf.getChannel().force(true);
+		}
+		new HolePuncher(probe).punch(PROBE_LENGTH, PROBE_LENGTH);
+		byte[] read = new byte[data.length];
+		try (RandomAccessFile raf = new RandomAccessFile(probe, "r")) {
+			if (raf.length() != data.length)
+				return false;
+			raf.readFully(read);
+		}
+		Arrays.fill(data, PROBE_LENGTH, 2 * PROBE_LENGTH, (byte)0);
+		return Arrays.equals(data, read);
+	}
+
+	/**
+	 * Punches a hole in the file. The data written in the file through other handles
+	 *  is not buffered, so there is no need to flush them before.
+	 *
+	 * @param offset	The start of the hole, in bytes.
+	 * @param length	The length of the hole, in bytes.
+	 * @throws IOException if the hole can not be punched.
+	 */
+	public void punch(long offset, long length) throws IOException {
+		fallocate(file, "--punch-hole", "--offset", Long.toString(offset), "--length", Long.toString(length));
+	}
+
+	/**
+	 * Punches {@code count} holes in the file with one process. The runs are punched
+	 *  in order, and the first that fails stops the others.
+	 *
+	 * @param offset	The start of each hole, in bytes.
+	 * @param length	The length of each hole, in bytes.
+	 * @param count	The number of holes, up to {@link #MAX_RUNS}.
+	 * @throws IOException if some hole can not be punched.
+	 */
+	public void punch(long[] offset, long[] length, int count) throws IOException {
+		if (count > MAX_RUNS)
+			throw new IllegalArgumentException(String.format("Runs: %d", count));
+		if (count == 1) {
+			punch(offset[0], length[0]);
+			return;
+		}
+		StringBuilder runs = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			runs.append(offset[i]).append(' ').append(length[i]).append('\n');
+		run(file, runs.toString(), "sh", "-c", PUNCH_LOOP, file.getPath());
+	}
+
+	/**
+	 * Allocates a range of the file in one extent if possible, so that the data written
+	 *  later is not fragmented. The range reads as zeros, and the file is extended if the
+	 *  range ends after the end of file.
+	 *
+	 * @param file	The file, that must exist.
+	 * @param offset	The start of the range, in bytes.
+	 * @param length	The length of the range, in bytes.
+	 * @return	{@code true} if the range is allocated, {@code false} if the host can not do it.
+	 */
+	public static boolean allocate(File file, long offset, long length) {
+		if (!System.getProperty("os.name").toLowerCase().startsWith("linux") || !file.isFile())
+			return false;
+		try {
+			fallocate(file, "--offset", Long.toString(offset), "--length", Long.toString(length));
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void fallocate(File file, String... options) throws IOException {
+		String[] command = new String[options.length + 2];
+		command[0] = FALLOCATE;
+		System.arraycopy(options, 0, command, 1, options.length);
+		command[options.length + 1] = file.getPath();
+		run(file, null, command);
+	}
+
+	private static void run(File file, String input, String... command) throws IOException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		try (OutputStream in = process.getOutputStream()) {
+			if (input != null)
+				in.write(input.getBytes(Charset.defaultCharset()));
+		} catch (IOException e) {
+			// the process stopped on a failure, that its exit value tells
+		}
+		String output = readAll(process.getInputStream());
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				process.waitFor();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true; // the range is done anyway, let the caller stop later
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (process.exitValue() != 0)
+			throw new IOException(String.format("%s %s: %s", FALLOCATE, file.getName(), output.trim()));
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+			byte[] buffer = new byte[1024];
+			for (int read; (read = in.read(buffer)) != -1; )
+				out.write(buffer, 0, read);
+			return new String(out.toByteArray(), Charset.defaultCharset());
+		}
+	}
+
+}
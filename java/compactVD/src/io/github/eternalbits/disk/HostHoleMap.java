@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The ranges of a file that hold data in the host file system. The other ranges are
+ *  holes, that read as zeros without being stored, so a block inside them is known
+ *  to be zero without reading it. Extents allocated but never written, and extents
+ *  not yet allocated, are taken as data.
+ * <p>
+ * The Java runtime has no call for this, neither {@code SEEK_HOLE} nor the {@code FIEMAP}
+ *  ioctl, so the {@code filefrag} command of e2fsprogs is run to list the extents of
+ *  the file, in the C locale, without syncing the file. This works on Linux hosts,
+ *  in ext4, xfs and btrfs among others. An output that is not understood gives no map.
+ *  The map is a snapshot: it must be read again after the file is written. It is only
+ *  used if asked by {@link DiskImage#setHostHoles(boolean)}.
+ */
+public class HostHoleMap {
+	private static final String FILEFRAG = "filefrag";
+
+	// "   0:        0.. 2097151: 9185525760..9187622911: 2097152:             last,eof"
+	private static final Pattern EXTENT = Pattern.compile("^\\s*\\d+:\\s*(\\d+)\\.\\.\\s*(\\d+):[^:]*:\\s*\\d+:.*$");
+	// "image.vdi: 28 extents found"
+	private static final Pattern FOUND = Pattern.compile("^.*: \\d+ extents? found$");
+
+	private final long[] start;			// The first byte of each data range, ascending
+	private final long[] end;			// The byte after each data range
+
+	private HostHoleMap(long[] start, long[] end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Reads the data ranges of {@code file}.
+	 *
+	 * @param file	The file, that must exist.
+	 * @return	The map, or {@code null} if the host can not tell where the holes are.
+	 */
+	public static HostHoleMap open(File file) {
+		if (!System.getProperty("os.name").toLowerCase().startsWith("linux") || !file.isFile())
+			return null;
+		try {
+			return read(file);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/* Any line that is not understood gives no map, it is better to read a few holes
+	 *  than to take data as zeros.
+	 */
+	private static HostHoleMap read(File file) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(FILEFRAG, "-e", "-b1", file.getPath());
+		builder.environment().put("LC_ALL", "C");
+		Process process = builder.redirectErrorStream(true).start();
+		long[] start = new long[64], end = new long[64];
+		int count = 0;
+		boolean header = false, found = false, unknown = false;
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			for (String line; (line = in.readLine()) != null; ) {
+				Matcher m = EXTENT.matcher(line);
+				if (m.matches()) {
+					if (count == start.length) {
+						start = Arrays.copyOf(start, count * 2);
+						end = Arrays.copyOf(end, count * 2);
+					}
+					start[count] = Long.parseLong(m.group(1));
+					end[count++] = Long.parseLong(m.group(2)) + 1;
+				} else if ((m = FOUND.matcher(line)).matches()) {
+					found = true;
+				} else if (line.startsWith("Filesystem type is:")
+						|| line.startsWith("File size of ") || line.trim().startsWith("ext:")) {
+					header = true;
+				} else if (!line.trim().isEmpty()) {
+					unknown = true; // read to the end, or the command may not finish
+				}
+			}
+		}
+		waitFor(process);
+
+		// The summary line counts fragments, not the extents listed
+		if (process.exitValue() != 0 || !header || !found || unknown)
+			return null;
+
+		start = Arrays.copyOf(start, count);
+		end = Arrays.copyOf(end, count);
+		for (int i = 1; i < count; i++) {
+			if (start[i] < end[i - 1])
+				return null;
+		}
+		return new HostHoleMap(start, end);
+	}
+
+	private static void waitFor(Process process) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				process.waitFor();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Tells if a range of the file is entirely in a hole, so that it reads as zeros.
+	 *
+	 * @param offset	The start of the range, in bytes.
+	 * @param length	The length of the range, in bytes.
+	 * @return	{@code true} if no data of the file is in the range.
+	 */
+	public boolean isHole(long offset, long length) {
+		int low = 0, high = end.length;
+		while (low < high) { // first range that ends after offset
+			int mid = (low + high) >>> 1;
+			if (end[mid] <= offset) low = mid + 1;
+			else high = mid;
+		}
+		return low == end.length || start[low] >= offset + length;
+	}
+
+	/**
+	 * Returns the number of data ranges, adjacent ranges are not merged.
+	 *
+	 * @return	The number of data ranges in the file.
+	 */
+	public int getDataRanges() {
+		return start.length;
+	}
+
+}
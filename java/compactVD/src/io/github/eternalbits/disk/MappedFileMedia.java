@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link DiskImageMedia} that maps a read-only image file in memory. The file
+ *  is mapped in segments of {@code 1 GiB}, reads copy straight from the page cache
+ *  and never block each other. Writes are not supported.
+ * <p>
+ * Mapped segments are released by the garbage collector, and the file can't be
+ *  truncated while they are alive. This is why only read-only images are mapped.
+ */
+class MappedFileMedia extends DiskImageMedia {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	private final FileChannelMedia fallback;
+	private volatile MappedByteBuffer[] segments;
+	private final long mappedLength;
+
+	MappedFileMedia(DiskImage image, File file) throws IOException {
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			mappedLength = fc.size();
+			segments = new MappedByteBuffer[(int)((mappedLength + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long position = i * SEGMENT_SIZE;
+				segments[i] = fc.map(MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, mappedLength - position));
+			}
+		}
+		fallback = new FileChannelMedia(image, file, "r");
+	}
+
+	@Override
+	public int read(long position, byte[] in, int start, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		MappedByteBuffer[] mapped = segments;
+		if (mapped == null || position >= mappedLength)
+			return fallback.read(position, in, start, length);
+
+		int read = 0;
+		length = (int)Math.min(length, mappedLength - position);
+		while (read < length) {
+			long from = position + read;
+			int offset = (int)(from & (SEGMENT_SIZE - 1));
+			MappedByteBuffer segment = mapped[(int)(from >> SEGMENT_SHIFT)];
+			int max = Math.min(length - read, segment.capacity() - offset);
+			segment.get(offset, in, start + read, max);
+			read += max;
+		}
+		return read;
+	}
+
+	@Override
+	public void write(long position, byte[] out, int start, int length) throws IOException {
+		throw new IOException(DiskImage.IMAGE_IS_READ_ONLY);
+	}
+
+	@Override
+	public int getType() {
+		return MAPPED_READ;
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments = null;
+		fallback.close();
+	}
+
+}
@@ -72,11 +72,6 @@ public class NullFileSystem extends DiskFileSystem {
 		return description == null? "Unknown file system": description;
 	}
 
-	@Override
-	public boolean isAllocated(long offset, long length) {
-		return true;
-	}
-
 	@Override
 	public String toString() {
 		if (isError)
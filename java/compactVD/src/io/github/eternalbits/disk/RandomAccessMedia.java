@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.IOException;
+
+/**
+ * A {@link DiskImageMedia} that seeks and reads on the image {@code RandomAccessFile}.
+ *  The file pointer is shared with the metadata updates, so each operation is
+ *  serialized on the file and restores the file pointer when done.
+ */
+class RandomAccessMedia extends DiskImageMedia {
+
+	private final DiskImage image;
+	
+	RandomAccessMedia(DiskImage image) {
+		this.image = image;
+	}
+
+	@Override
+	public int read(long position, byte[] in, int start, int length) throws IOException {
+		synchronized (image.media) {
+			long pointer = image.media.getFilePointer();
+			try {
+				image.media.seek(position);
+				return image.media.read(in, start, length);
+			} finally {
+				image.media.seek(pointer);
+			}
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] out, int start, int length) throws IOException {
+		synchronized (image.media) {
+			long pointer = image.media.getFilePointer();
+			try {
+				image.media.seek(position);
+				image.media.write(out, start, length);
+			} finally {
+				image.media.seek(pointer);
+			}
+		}
+	}
+
+	@Override
+	public int getType() {
+		return RANDOM_ACCESS;
+	}
+
+	@Override
+	public void close() {
+		// the image file is closed by the image
+	}
+
+}
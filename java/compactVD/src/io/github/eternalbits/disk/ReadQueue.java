@@ -0,0 +1,176 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keeps up to {@code depth} positional reads of a {@link DiskImageMedia} in flight.
+ *  A single thread that waits for each read leaves a fast device mostly idle, the
+ *  reads submitted here are served by a pool of {@code depth} threads, and the
+ *  caller waits for each one only when it needs the data.
+ * <p>
+ * The reads are made by the media, so they must be of a type that serves several
+ *  threads at once, such as {@link DiskImageMedia#FILE_CHANNEL}, or they are made
+ *  one at a time. Reads are started in the order they are submitted, and may end
+ *  in any order. A queue of depth 1 reads in the calling thread, when submitted.
+ */
+public class ReadQueue implements AutoCloseable {
+
+	/**
+	 * A read submitted to the queue.
+	 */
+	public static class Read {
+		private final long position;
+		private final byte[] in;
+		private final int start;
+		private final int length;
+		private boolean done = false;
+		private IOException failure = null;
+
+		private Read(long position, byte[] in, int start, int length) {
+			this.position = position;
+			this.in = in;
+			this.start = start;
+			this.length = length;
+		}
+
+		private void run(DiskImageMedia media) {
+			IOException error = null;
+			try {
+				media.readFully(position, in, start, length);
+			} catch (IOException e) {
+				error = e;
+			}
+			synchronized (this) {
+				failure = error;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until all bytes are read. If the calling thread is interrupted the
+		 *  wait goes on, and the interrupt status is set on return.
+		 *
+		 * @throws IOException if some I/O error occurred in the read.
+		 */
+		public synchronized void await() throws IOException {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	private static final Read END = new Read(0, null, 0, 0);
+
+	private final DiskImageMedia media;
+	private final int depth;
+	private final BlockingQueue<Read> queue = new LinkedBlockingQueue<Read>();
+	private final Thread[] workers;
+
+	/**
+	 * Starts the threads of a queue for reads of {@code media}.
+	 *
+	 * @param media	The media to read.
+	 * @param depth	The maximum number of reads in flight.
+	 */
+	public ReadQueue(final DiskImageMedia media, int depth) {
+		this.media = media;
+		this.depth = Math.max(1, depth);
+		workers = new Thread[this.depth == 1? 0: this.depth];
+		for (int w = 0; w < workers.length; w++) {
+			workers[w] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Read read = queue.take();
+							if (read == END)
+								break;
+							read.run(media);
+						} catch (InterruptedException e) {
+							// Only END stops a worker, or a read would never end
+						}
+					}
+				}
+			}, "CompactVD read queue "+w);
+			workers[w].setDaemon(true);
+			workers[w].start();
+		}
+	}
+
+	/**
+	 * Submits a read of exactly {@code length} bytes of the image file, starting at
+	 *  {@code position}. The array must not be used until the read ends.
+	 *
+	 * @param	position	the file position where the read starts.
+	 * @param	in		the byte array into which the data is read.
+	 * @param	start	the start offset in the byte array.
+	 * @param	length	the number of bytes to read.
+	 * @return	The read, to wait for.
+	 */
+	public Read submit(long position, byte[] in, int start, int length) {
+		Read read = new Read(position, in, start, length);
+		if (workers.length == 0)
+			read.run(media);
+		else queue.add(read);
+		return read;
+	}
+
+	/**
+	 * Returns the maximum number of reads in flight.
+	 *
+	 * @return	The depth of the queue.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Stops the threads after the reads submitted, and waits for them.
+	 */
+	@Override
+	public void close() {
+		for (int w = 0; w < workers.length; w++)
+			queue.add(END);
+		boolean interrupted = false;
+		for (Thread worker: workers) {
+			while (worker.isAlive()) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+}
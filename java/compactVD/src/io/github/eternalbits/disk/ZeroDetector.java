@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 Rui Baptista
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eternalbits.disk;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Checks if a buffer is completely filled with zeros. This is the innermost loop
+ *  of the search for zeroed blocks, and there are several strategies to do it.
+ *  None of them allocates memory. The fastest one in the running JVM is chosen
+ *  by {@link #getBest()} the first time it is called.
+ * <p>
+ * The byte order is irrelevant: a word is zero if and only if all its bytes are
+ *  zero, whatever the order.
+ */
+public abstract class ZeroDetector {
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final byte[] ZEROS = new byte[0x10000];
+
+	/** Checks one byte at a time. This is the reference implementation. */
+	public static final ZeroDetector BYTES = new ZeroDetector() {
+		@Override
+		public String getName() {
+			return "bytes";
+		}
+		@Override
+		public boolean isZero(byte[] buffer, int start, int length) {
+			for (int i = start, s = start + length; i < s; i++)
+				if (buffer[i] != 0) return false;
+			return true;
+		}
+	};
+
+	/** Combines 64 bytes as long words before each test, reads on a byte array view. */
+	public static final ZeroDetector WORDS = new ZeroDetector() {
+		@Override
+		public String getName() {
+			return "words";
+		}
+		@Override
+		public boolean isZero(byte[] buffer, int start, int length) {
+			int i = start, s = start + length;
+			for (; i + 64 <= s; i += 64) {
+				long word = (long)LONGS.get(buffer, i)
+						| (long)LONGS.get(buffer, i + 8)
+						| (long)LONGS.get(buffer, i + 16)
+						| (long)LONGS.get(buffer, i + 24)
+						| (long)LONGS.get(buffer, i + 32)
+						| (long)LONGS.get(buffer, i + 40)
+						| (long)LONGS.get(buffer, i + 48)
+						| (long)LONGS.get(buffer, i + 56);
+				if (word != 0) return false;
+			}
+			return BYTES.isZero(buffer, i, s - i);
+		}
+	};
+
+	/** Tests each long word and exits on the first one that is not zero. */
+	public static final ZeroDetector EARLY_EXIT = new ZeroDetector() {
+		@Override
+		public String getName() {
+			return "early-exit";
+		}
+		@Override
+		public boolean isZero(byte[] buffer, int start, int length) {
+			int i = start, s = start + length;
+			for (; i + 8 <= s; i += 8) {
+				if ((long)LONGS.get(buffer, i) != 0) return false;
+			}
+			return BYTES.isZero(buffer, i, s - i);
+		}
+	};
+
+	/** Compares with an array of zeros using {@link Arrays#mismatch}, a JVM intrinsic with vector instructions. */
+	public static final ZeroDetector MISMATCH = new ZeroDetector() {
+		@Override
+		public String getName() {
+			return "mismatch";
+		}
+		@Override
+		public boolean isZero(byte[] buffer, int start, int length) {
+			for (int i = start, s = start + length; i < s; i += ZEROS.length) {
+				int n = Math.min(ZEROS.length, s - i);
+				if (Arrays.mismatch(buffer, i, i + n, ZEROS, 0, n) != -1) return false;
+			}
+			return true;
+		}
+	};
+
+	private static final ZeroDetector[] ALL = {BYTES, WORDS, EARLY_EXIT, MISMATCH};
+	private static volatile ZeroDetector best = null;
+
+	public abstract String getName();
+
+	/**
+	 * Returns {@code true} if the bytes from {@code buffer[start]} to
+	 *  {@code buffer[start + length - 1]} are all zero.
+	 *
+	 * @param buffer	The byte array to check.
+	 * @param start		The first byte to check.
+	 * @param length	The number of bytes to check.
+	 * @return	{@code true} if all bytes are zero, {@code false} otherwise.
+	 */
+	public abstract boolean isZero(byte[] buffer, int start, int length);
+
+	/**
+	 * Returns {@code true} if the bytes from absolute position {@code start} to
+	 *  {@code start + length - 1} of {@code buffer} are all zero. The buffer
+	 *  position, limit and order are not used or changed.
+	 *
+	 * @param buffer	The byte buffer to check.
+	 * @param start		The absolute position of the first byte to check.
+	 * @param length	The number of bytes to check.
+	 * @return	{@code true} if all bytes are zero, {@code false} otherwise.
+	 */
+	public boolean isZero(ByteBuffer buffer, int start, int length) {
+		if (buffer.hasArray())
+			return isZero(buffer.array(), buffer.arrayOffset() + start, length);
+		int i = start, s = start + length;
+		for (; i + 8 <= s; i += 8) {
+			if (buffer.getLong(i) != 0) return false;
+		}
+		for (; i < s; i++) {
+			if (buffer.get(i) != 0) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Returns all the available detectors, the first one is the reference.
+	 *
+	 * @return	An array with all the detectors.
+	 */
+	public static ZeroDetector[] getAll() {
+		return ALL.clone();
+	}
+
+	/**
+	 * Returns the fastest detector in this JVM. On the first call all the word
+	 *  detectors are timed with a zero filled block, that must be checked to the
+	 *  end, after a warm up that gives the JIT compiler time to work. It takes a
+	 *  few milliseconds.
+	 *
+	 * @return	The fastest {@code ZeroDetector}.
+	 */
+	public static ZeroDetector getBest() {
+		if (best == null) {
+			synchronized (ZeroDetector.class) {
+				if (best == null)
+					best = calibrate();
+			}
+		}
+		return best;
+	}
+
+	private static ZeroDetector calibrate() {
+		byte[] block = new byte[0x10000];
+		ZeroDetector fastest = WORDS;
+		long time = Long.MAX_VALUE;
+		for (int d = 1; d < ALL.length; d++) {
+			boolean zero = true;
+			for (int i = 0; i < 500; i++)
+				zero &= ALL[d].isZero(block, 0, block.length);
+			long start = System.nanoTime();
+			for (int i = 0; i < 200; i++)
+				zero &= ALL[d].isZero(block, 0, block.length);
+			long spent = System.nanoTime() - start;
+			if (zero && spent < time) {
+				time = spent;
+				fastest = ALL[d];
+			}
+		}
+		return fastest;
+	}
+
+}
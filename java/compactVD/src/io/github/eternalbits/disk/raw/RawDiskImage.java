@@ -16,7 +16,6 @@
 
 package io.github.eternalbits.disk.raw;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -25,7 +24,10 @@ import java.nio.ByteOrder;
 
 import io.github.eternalbits.compactvd.Static;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageProgress;
+import io.github.eternalbits.disk.HolePuncher;
+import io.github.eternalbits.disk.HostHoleMap;
 import io.github.eternalbits.disk.WrongHeaderException;
 import io.github.eternalbits.disks.DiskLayouts;
 
@@ -49,6 +51,9 @@ public class RawDiskImage extends DiskImage {
 	final int clustersCount;
 	final RawVirtualBlockTable clusterTable;
 	
+	private volatile HostHoleMap hostHoles = null;	// Read again after each write
+	private volatile boolean holesRead = false;
+	
 	public RawDiskImage(File file, long diskSize, int blockSize) throws IOException {
 		if (!isValidBlockSize(blockSize))
 			throw new IllegalArgumentException(String.format("Block size: %d", blockSize));
@@ -57,6 +62,7 @@ public class RawDiskImage extends DiskImage {
 		
 		media = new RandomAccessFile(file, "rw");
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, "rw");
 			path = file.getPath();
 			readOnly = false;
 			
@@ -71,6 +77,8 @@ public class RawDiskImage extends DiskImage {
 			touched = true;
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -82,6 +90,7 @@ public class RawDiskImage extends DiskImage {
 
 		media = new RandomAccessFile(file, mode);
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, mode);
 			readOnly = mode.equals("r");
 			path = file.getPath();
 			
@@ -101,6 +110,8 @@ public class RawDiskImage extends DiskImage {
 			setLayout(DiskLayouts.open(this));
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -195,8 +206,9 @@ public class RawDiskImage extends DiskImage {
 		int read = 0;
 		
 		while (read < length) {
-			if (clusterTable.exists(blockNumber)) return true;
 			int max = Math.min(length - read, clusterSize - blockOffset);
+			if (clusterTable.exists(blockNumber) && !isHostHole(blockNumber * (long)clusterSize + blockOffset, max)) 
+				return true;
 			blockOffset = 0;
 			blockNumber++;
 			read += max;
@@ -205,6 +217,20 @@ public class RawDiskImage extends DiskImage {
 		return false;
 	}
 
+	/* A range in a hole of the image file has no data, even if the cluster is mapped,
+	 *  if the holes are read from the host.
+	 */
+	private boolean isHostHole(long offset, int length) {
+		if (!getHostHoles())
+			return false;
+		if (!holesRead) {
+			hostHoles = HostHoleMap.open(new File(path));
+			holesRead = true;
+		}
+		HostHoleMap holes = hostHoles;
+		return holes != null && holes.isHole(diskStart + offset, length);
+	}
+
 	@Override
 	public long getDiskSize() {
 		return diskSize;
@@ -242,14 +268,12 @@ public class RawDiskImage extends DiskImage {
 
 	@Override
 	protected int read(long offset, byte[] in, int start, int length) throws IOException {
-		media.seek(diskStart + offset);
-		return media.read(in, start, length);
+		return access.read(diskStart + offset, in, start, length);
 	}
 
 	@Override
 	public void write(byte[] out, int start, int length) throws IOException {
-		media.seek(diskPointer);
-		media.write(out, start, length);
+		writeData(diskPointer, out, start, length);
 		diskPointer += length;
 		touched = true;
 	}
@@ -259,9 +283,44 @@ public class RawDiskImage extends DiskImage {
 		// nothing to do
 	}
 
+	/**
+	 * Sparsifies the image in place: the clusters freed by {@link #optimize(int)}, not in
+	 *  use by the file system or filled with zeros, are punched as holes in the image file.
+	 *  The file length is not changed. Nothing is done if the host can not punch holes.
+	 */
 	@Override
-	public void compact() {
-		// nothing to do
+	public synchronized void compact() throws IOException {
+		if (readOnly)
+			throw new IOException(IMAGE_IS_READ_ONLY);
+		
+		HolePuncher puncher = getHolePuncher();
+		Progress progress = new Progress(DiskImageProgress.COMPACT, 
+				puncher == null? 0: clustersCount - clusterTable.getDataClustersCount());
+		
+		Thread thisThread = Thread.currentThread();
+		long[] offsets = new long[HolePuncher.MAX_RUNS], lengths = new long[HolePuncher.MAX_RUNS];
+		for (int i = 0; puncher != null && i < clustersCount && !thisThread.isInterrupted(); ) {
+			int runs = 0, clusters = 0;
+			for (; i < clustersCount && runs < offsets.length; i++) {
+				if (!clusterTable.exists(i)) {
+					int n = 1;
+					while (i + n < clustersCount && !clusterTable.exists(i + n))
+						n++;
+					offsets[runs] = diskStart + i * (long)clusterSize;
+					lengths[runs++] = n * (long)clusterSize;
+					clusters += n;
+					i += n;
+				}
+			}
+			if (runs > 0) {
+				puncher.punch(offsets, lengths, runs);
+				progress.step(clusters);
+				touched = true;
+			}
+		}
+		holesRead = false; // the holes punched are read again once, on the next probe
+		
+		progress.end();
 	}
 
 	@Override
@@ -271,28 +330,21 @@ public class RawDiskImage extends DiskImage {
 		if (readOnly)
 			throw new IOException(IMAGE_IS_READ_ONLY);
 		
-		Progress progress = new Progress(DiskImageProgress.COPY, getImageBlocksCount());
+		Progress progress = new Progress(DiskImageProgress.COPY, countDataReads(source));
 		
-		synchronized(source) {
-			
-			diskPointer = 0L;
-			byte[] buffer = new byte[getImageBlockSize()];
-			for (int i = 0, s = getImageBlocksCount(); i < s; i++) {
-				int read = source.readAll(diskPointer, buffer, 0, buffer.length);
-				if (read < buffer.length) {
-					if (read < 0 || diskPointer + read < getDiskSize())
-						throw new EOFException(source.toString());
-				}
-				write(buffer, 0, buffer.length);
-				progress.step(1);
-				touched = true;
-				if (Thread.currentThread().isInterrupted()) {
-					break;
-				}
+		media.setLength(0); // clusters not written are holes that read as zeros
+		try {
+			synchronized(source) {
+				copyBlocks(source, progress, true);
 			}
+		} finally {
+			holesRead = false; // the file written is read again once, on the next probe
 		}
 		
-		media.setLength(media.getFilePointer());
+		// An interrupted copy keeps what was written, as the other formats
+		if (Thread.currentThread().isInterrupted())
+			media.setLength(media.getFilePointer());
+		else media.setLength(diskSize);
 		
 		progress.end();
 	}
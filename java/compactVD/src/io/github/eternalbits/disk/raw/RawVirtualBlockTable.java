@@ -65,9 +65,24 @@ class RawVirtualBlockTable extends DiskImageBlockTable {
 		return false;
 	}
 
+	@Override
+	protected int nextMapped(int from, int to) {
+		int next = blockMap.nextSetBit(Math.max(from, 0));
+		return next < 0? to: Math.min(next, to);
+	}
+
+	@Override
+	protected long allocate(int blockNumber) {
+		if (blockNumber >= 0 && blockNumber < blockMap.size() && !blockMap.get(blockNumber)) {
+			blockMap.set(blockNumber);
+			dataClustersCount++;
+		}
+		return getOffset(blockNumber);
+	}
+
 	@Override
 	protected void free(int blockNumber) {
-		if (blockNumber >= 0 && blockNumber < blockMap.size()) {
+		if (blockNumber >= 0 && blockNumber < blockMap.size() && blockMap.get(blockNumber)) {
 			blockMap.clear(blockNumber);
 			dataClustersCount--;
 		}
@@ -19,15 +19,88 @@ package io.github.eternalbits.linux.disk.btrfs;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32C;
 
+import io.github.eternalbits.disk.BufferPool;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
+import io.github.eternalbits.disk.FreeSpaceIndex;
 import io.github.eternalbits.disk.WrongHeaderException;
 
 public class BtrfsFileSystem extends DiskFileSystem { // https://btrfs.readthedocs.io/_/downloads/en/stable/pdf/
 	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
 
+	private static final int HEADER_SIZE		= 101;		// Tree node header
+	private static final int KEY_PTR_SIZE		= 33;		// Internal node key and pointer
+	private static final int ITEM_SIZE			= 25;		// Leaf item key, offset and size
+	private static final int CHUNK_SIZE			= 48;		// Chunk item without stripes
+	private static final int STRIPE_SIZE		= 32;
+	private static final int MAX_LEVEL			= 8;
+	
+	private static final int EXTENT_ITEM		= 168;
+	private static final int METADATA_ITEM		= 169;
+	private static final int BLOCK_GROUP_ITEM	= 192;
+	private static final int ROOT_ITEM			= 132;
+	private static final int CHUNK_ITEM			= 228;
+	
+	private static final long EXTENT_TREE		= 2;
+	private static final long BLOCK_GROUP_TREE	= 11;
+	
+	private static final long PROFILE_MASK		= 0x7F8;	// RAID0, RAID1, DUP, RAID10, RAID5, RAID6, RAID1C3, RAID1C4
+	private static final long PROFILE_DUP		= 0x20;
+	
+	private static final long FLAG_UNSUPPORTED	= 1L << 2 | 0xFL << 33;	// ERROR, METADUMP, METADUMP_V2, CHANGING_FSID, CHANGING_FSID_V2
+	private static final long COMPAT_RO_BLOCK_GROUP_TREE = 1L << 3;
+	private static final long INCOMPAT_METADATA_UUID = 1L << 10;
+	private static final long INCOMPAT_SUPPORTED = (1L << 12) - 1;	// Up to RAID1C34, before ZONED and EXTENT_TREE_V2
+	static final int CSUM_CRC32C				= 0;		// The only checksum type verified
+	static final int CSUM_SIZE					= 32;		// Checksum field of the super block and of each node
+	
+	private static final long RESERVED_SIZE		= 1L << 20;	// Never allocated at the start of a device
+	private static final long[] SUPER_MIRRORS	= {65536, 16384L << 12, 16384L << 24};
+	private static final int SUPER_SIZE			= 4096;
+
 	final BtrfsVolumeHeader header;
+	
+	private final TreeMap<Long, Chunk> chunks = new TreeMap<Long, Chunk>();
+	private FreeSpaceIndex freeSpace = null;
+	private boolean freeSpaceRead = false;
+	
+	/* A chunk maps a range of logical addresses to the same length of physical bytes
+	 *  at each stripe on this device, for the single and DUP profiles. The stripes of
+	 *  other profiles are kept only to find the bytes of the device in use.
+	 */
+	private static class Chunk {
+		final long logical;
+		final long length;
+		final long type;
+		final long[] stripes;
+		
+		Chunk(long logical, long length, long type, long[] stripes) {
+			this.logical = logical;
+			this.length = length;
+			this.type = type;
+			this.stripes = stripes;
+		}
+		
+		boolean isSupported() {
+			long profile = type & PROFILE_MASK;
+			return profile == 0 && stripes.length == 1 || profile == PROFILE_DUP && stripes.length == 2;
+		}
+	}
+	
+	/* Called for each leaf item of a tree, in key order.
+	 */
+	private interface ItemVisitor {
+		void visit(ByteBuffer leaf, long objectid, int type, long offset, int data, int size) throws IOException;
+	}
 
 	public BtrfsFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -54,8 +127,282 @@ public class BtrfsFileSystem extends DiskFileSystem { // https://btrfs.readthedo
 	}
 	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		return true;
+	public long findAllocated(long offset, long end) {
+		FreeSpaceIndex index = getFreeSpace();
+		return index == null? super.findAllocated(offset, end): index.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		FreeSpaceIndex index = getFreeSpace();
+		return index == null? super.findFree(offset, end): index.findFree(offset, end);
+	}
+	
+	/* The free space is read on the first query. If the volume is not supported, or
+	 *  its trees are not understood, there is no index and all bytes are allocated.
+	 */
+	private synchronized FreeSpaceIndex getFreeSpace() {
+		if (!freeSpaceRead) {
+			freeSpaceRead = true;
+			try {
+				if (isSupported())
+					freeSpace = readFreeSpace();
+			} catch (IOException e) {
+				freeSpace = null;
+			}
+			chunks.clear();
+		}
+		return freeSpace;
+	}
+	
+	private boolean isSupported() {
+		return header.num_devices == 1 && header.log_root == 0 
+				&& (header.flags & FLAG_UNSUPPORTED) == 0
+				&& (header.incompat_flags & ~INCOMPAT_SUPPORTED) == 0
+				&& header.nodesize >= 4096 && header.nodesize <= 65536
+				&& header.csum_type == CSUM_CRC32C && header.csumValid
+				&& header.dev_item_total_bytes > 0;
+	}
+	
+	/**
+	 * Reads the free space of the device. The chunk tree maps logical addresses to the
+	 *  device, the block group items tell the logical ranges of each chunk in use, and
+	 *  the extent and metadata items tell the bytes in use within them. The device bytes
+	 *  not in a chunk, and the bytes of a chunk not in an extent, are free.
+	 * <p>
+	 * Each tree is read once, in key order. The extents found must add up to the bytes
+	 *  used recorded in the block groups.
+	 * 
+	 * @return	The free extents of the device.
+	 * @throws IOException if a tree can not be read or is not valid.
+	 */
+	private FreeSpaceIndex readFreeSpace() throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(header.sys_chunk_array, 0, header.sys_chunk_array_size).order(BYTE_ORDER);
+		while (in.remaining() >= 17 + CHUNK_SIZE) {
+			long objectid = in.getLong(in.position());
+			int type = in.get(in.position() + 8) & 0xFF;
+			long offset = in.getLong(in.position() + 9);
+			if (type != CHUNK_ITEM)
+				throw new IOException(String.format("%s: system chunk %d is not valid", getType(), objectid));
+			int size = readChunk(in, in.position() + 17, in.remaining() - 17, offset);
+			in.position(in.position() + 17 + size);
+		}
+		
+		walkTree(header.chunk_root, header.chunk_root_level, new ItemVisitor() {
+			@Override
+			public void visit(ByteBuffer leaf, long objectid, int type, long offset, int data, int size) throws IOException {
+				if (type == CHUNK_ITEM)
+					readChunk(leaf, data, size, offset);
+			}
+		});
+		
+		final long[] roots = new long[] {-1, -1, -1, -1};	// extent tree and block group tree, bytenr and level
+		walkTree(header.root, header.root_level, new ItemVisitor() {
+			@Override
+			public void visit(ByteBuffer leaf, long objectid, int type, long offset, int data, int size) throws IOException {
+				if (type != ROOT_ITEM || size < 239)
+					return;
+				int tree = objectid == EXTENT_TREE? 0: objectid == BLOCK_GROUP_TREE? 2: -1;
+				if (tree >= 0) {
+					roots[tree] = leaf.getLong(data + 176);
+					roots[tree + 1] = leaf.get(data + 238) & 0xFF;
+				}
+			}
+		});
+		boolean groupTree = (header.compat_ro_flags & COMPAT_RO_BLOCK_GROUP_TREE) != 0;
+		if (roots[0] < 0 || groupTree && roots[2] < 0)
+			throw new IOException(String.format("%s: extent tree not found", getType()));
+		
+		final List<long[]> groups = new ArrayList<long[]>();	// start, length and bytes used
+		final long[][] used = new long[][] {new long[64], new long[64]};	// Merged ranges in use
+		final int[] count = new int[] {0};
+		final long[] total = new long[] {0};
+		ItemVisitor extents = new ItemVisitor() {
+			@Override
+			public void visit(ByteBuffer leaf, long objectid, int type, long offset, int data, int size) throws IOException {
+				if (type == BLOCK_GROUP_ITEM && size >= 24) {
+					groups.add(new long[] {objectid, offset, leaf.getLong(data)});
+					return;
+				}
+				if (type != EXTENT_ITEM && type != METADATA_ITEM)
+					return;
+				long length = type == EXTENT_ITEM? offset: header.nodesize;
+				int n = count[0];
+				if (n > 0 && objectid < used[1][n - 1])
+					throw new IOException(String.format("%s: extent %d is out of order", getType(), objectid));
+				if (n > 0 && objectid == used[1][n - 1]) {
+					used[1][n - 1] += length;
+				} else {
+					if (n == used[0].length) {
+						used[0] = Arrays.copyOf(used[0], n * 2);
+						used[1] = Arrays.copyOf(used[1], n * 2);
+					}
+					used[0][n] = objectid;
+					used[1][n] = objectid + length;
+					count[0]++;
+				}
+				total[0] += length;
+			}
+		};
+		if (groupTree)
+			walkTree(roots[2], (int)roots[3], extents);
+		walkTree(roots[0], (int)roots[1], extents);
+		
+		long groupUsed = 0;
+		for (long[] group: groups)
+			groupUsed += group[2];
+		if (groupUsed != total[0])
+			throw new IOException(String.format("%s: extents do not match block groups", getType()));
+		
+		FreeSpaceIndex index = new FreeSpaceIndex();
+		int u = 0;
+		for (long[] group: groups) {
+			Chunk chunk = chunks.get(group[0]);
+			if (chunk == null || chunk.length != group[1])
+				throw new IOException(String.format("%s: block group %d has no chunk", getType(), group[0]));
+			if (!chunk.isSupported())
+				continue;
+			for (long from = group[0], to = group[0] + group[1]; from < to; ) {
+				while (u < count[0] && used[1][u] <= from)
+					u++;
+				long next = u < count[0]? Math.min(to, Math.max(from, used[0][u])): to;
+				for (long stripe: chunk.stripes)
+					index.add(stripe + from - chunk.logical, next - from);
+				if (next >= to)
+					break;
+				from = used[1][u];
+			}
+		}
+		
+		long device = Math.min(header.dev_item_total_bytes, diskLength);
+		int a = 0;
+		for (Chunk chunk: chunks.values())
+			a += chunk.stripes.length;
+		long[][] allocated = new long[a][];
+		a = 0;
+		for (Chunk chunk: chunks.values()) {
+			for (long stripe: chunk.stripes)
+				allocated[a++] = new long[] {stripe, stripe + chunk.length};
+		}
+		Arrays.sort(allocated, 0, a, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] e1, long[] e2) {
+				return Long.compare(e1[0], e2[0]);
+			}
+		});
+		long last = 0;
+		for (int i = 0; i < a; i++) {
+			index.add(last, allocated[i][0] - last);
+			last = Math.max(last, allocated[i][1]);
+		}
+		index.add(last, device - last);
+		
+		index.remove(0, RESERVED_SIZE);
+		for (long mirror: SUPER_MIRRORS)
+			index.remove(mirror, SUPER_SIZE);
+		index.remove(device, Long.MAX_VALUE - device);
+		return index;
+	}
+	
+	/**
+	 * Reads a chunk item, and keeps the physical offsets of its stripes on this device.
+	 *  A chunk with a profile other than single or DUP is not read, and the whole
+	 *  length of the chunk from each stripe is allocated.
+	 * 
+	 * @param in		The buffer with the item.
+	 * @param data		The offset of the item in the buffer.
+	 * @param size		The bytes available for the item.
+	 * @param logical	The logical address of the chunk, from the item key.
+	 * @return	The size of the item.
+	 * @throws IOException if the item is not valid.
+	 */
+	private int readChunk(ByteBuffer in, int data, int size, long logical) throws IOException {
+		long length = in.getLong(data);
+		long type = in.getLong(data + 24);
+		int stripes = in.getShort(data + 44) & 0xFFFF;
+		int itemSize = CHUNK_SIZE + stripes * STRIPE_SIZE;
+		if (length <= 0 || stripes == 0 || itemSize > size)
+			throw new IOException(String.format("%s: chunk %d is not valid", getType(), logical));
+		long[] offsets = new long[stripes];
+		int here = 0;
+		for (int s = 0; s < stripes; s++) {
+			int stripe = data + CHUNK_SIZE + s * STRIPE_SIZE;
+			if (in.getLong(stripe) == header.dev_item_devid)
+				offsets[here++] = in.getLong(stripe + 8);
+		}
+		Chunk chunk = new Chunk(logical, length, type, Arrays.copyOf(offsets, here));
+		Map.Entry<Long, Chunk> before = chunks.floorEntry(logical);
+		if (before != null && before.getKey() != logical && before.getKey() + before.getValue().length > logical)
+			throw new IOException(String.format("%s: chunk %d overlaps chunk %d", getType(), logical, before.getKey()));
+		chunks.put(logical, chunk);
+		return itemSize;
+	}
+	
+	/**
+	 * Visits the leaf items of a tree, depth first, so each node is read once and the
+	 *  items are visited in key order.
+	 * 
+	 * @param logical	The logical address of the root node.
+	 * @param level		The level of the root node.
+	 * @param visitor	Called for each item.
+	 * @throws IOException if a node can not be read or is not valid.
+	 */
+	private void walkTree(long logical, int level, ItemVisitor visitor) throws IOException {
+		if (level < 0 || level >= MAX_LEVEL)
+			throw new IOException(String.format("%s: tree level %d is not valid", getType(), level));
+		byte[] buffer = BufferPool.take(header.nodesize);
+		try {
+			ByteBuffer in = readNode(logical, buffer);
+			int items = in.getInt(96);
+			if ((in.get(100) & 0xFF) != level || items < 0 
+					|| items > (header.nodesize - HEADER_SIZE) / (level == 0? ITEM_SIZE: KEY_PTR_SIZE))
+				throw new IOException(String.format("%s: tree node %d is not valid", getType(), logical));
+			for (int i = 0; i < items; i++) {
+				if (level > 0) {
+					walkTree(in.getLong(HEADER_SIZE + i * KEY_PTR_SIZE + 17), level - 1, visitor);
+					continue;
+				}
+				int item = HEADER_SIZE + i * ITEM_SIZE;
+				int data = HEADER_SIZE + in.getInt(item + 17), size = in.getInt(item + 21);
+				if (size < 0 || data < HEADER_SIZE || data + (long)size > header.nodesize)
+					throw new IOException(String.format("%s: tree node %d is not valid", getType(), logical));
+				visitor.visit(in, in.getLong(item), in.get(item + 8) & 0xFF, in.getLong(item + 9), data, size);
+			}
+		} finally {
+			BufferPool.give(buffer);
+		}
+	}
+	
+	/**
+	 * Reads a tree node, and checks that it is the node at {@code logical} of this file
+	 *  system and that its checksum is valid, before any item of the node is trusted.
+	 * 
+	 * @param logical	The logical address of the node.
+	 * @param buffer	The buffer for the node, of {@code nodesize} bytes.
+	 * @return	The node, in {@code buffer}.
+	 * @throws IOException if the node can not be read or is not valid.
+	 */
+	private ByteBuffer readNode(long logical, byte[] buffer) throws IOException {
+		Map.Entry<Long, Chunk> entry = chunks.floorEntry(logical);
+		Chunk chunk = entry == null? null: entry.getValue();
+		if (chunk == null || !chunk.isSupported() || logical + buffer.length > chunk.logical + chunk.length)
+			throw new IOException(String.format("%s: tree node %d is not mapped", getType(), logical));
+		long physical = chunk.stripes[0] + logical - chunk.logical;
+		if (layout.getImage().readAll(diskOffset + physical, buffer, 0, buffer.length) != buffer.length)
+			throw new IOException(String.format("%s: can not read tree node %d", getType(), logical));
+		ByteBuffer in = ByteBuffer.wrap(buffer).order(BYTE_ORDER);
+		if (in.getLong(48) != logical || (header.incompat_flags & INCOMPAT_METADATA_UUID) == 0 
+				&& !header.fsid.equals(new UUID(in.getLong(32), in.getLong(40))))
+			throw new IOException(String.format("%s: tree node %d is not valid", getType(), logical));
+		if (in.getInt(0) != crc32c(buffer, CSUM_SIZE, buffer.length - CSUM_SIZE))
+			throw new IOException(String.format("%s: tree node %d has a wrong checksum", getType(), logical));
+		return in;
+	}
+	
+	static int crc32c(byte[] buffer, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(buffer, offset, length);
+		return (int)crc.getValue();
 	}
 
 }
@@ -53,6 +53,16 @@ public class BtrfsVolumeHeader {
 	long	compat_flags;				// compat_flags
 	long	compat_ro_flags;			// compat_ro_flags - only implementations that support the flags can write to the filesystem
 	long	incompat_flags;				// incompat_flags - only implementations that support the flags can use the filesystem
+	short	csum_type;					// csum_type - Btrfs currently uses the CRC32c little-endian hash function with seed -1.
+	byte	root_level;					// root_level
+	byte	chunk_root_level;			// chunk_root_level
+	byte	log_root_level;				// log_root_level
+	long	dev_item_devid;				// DEV_ITEM data for this device: device id
+	long	dev_item_total_bytes;		// DEV_ITEM data for this device: number of bytes
+	long	dev_item_bytes_used;		// DEV_ITEM data for this device: number of bytes used
+	byte[]	sys_chunk_array;			// (n bytes valid) Contains (KEY, CHUNK_ITEM) pairs for all SYSTEM chunks. This is needed to bootstrap the mapping from logical addresses to physical.
+	
+	boolean	csumValid;					// The CRC32C of the super block matches csum (not stored)
 
 	BtrfsVolumeHeader(BtrfsFileSystem ext, ByteBuffer in) throws IOException, WrongHeaderException {
 		this.fileSystem	= ext;
@@ -83,12 +93,25 @@ public class BtrfsVolumeHeader {
 			compat_flags			= in.getLong();
 			compat_ro_flags			= in.getLong();
 			incompat_flags			= in.getLong();
-			in.position(in.position() + 3900);
+			csum_type				= in.getShort();
+			root_level				= in.get();
+			chunk_root_level		= in.get();
+			log_root_level			= in.get();
+			dev_item_devid			= in.getLong();
+			dev_item_total_bytes	= in.getLong();
+			dev_item_bytes_used		= in.getLong();
+			in.position(in.position() + 74 + 256 + 256);
+			sys_chunk_array			= Static.getBytes(in, 2048);
+			in.position(in.position() + 1237);
+			
+			csumValid = csum_type == BtrfsFileSystem.CSUM_CRC32C && in.getInt(0) 
+					== BtrfsFileSystem.crc32c(in.array(), BtrfsFileSystem.CSUM_SIZE, HEADER_SIZE - BtrfsFileSystem.CSUM_SIZE);
 			
 			if (magic == SB_MAGIC 
 					&& Static.isPower2(sectorsize) && Static.isPower2(nodesize) 
 					&& Static.isPower2(leafsize) && Static.isPower2(stripesize) 
-					&& total_bytes == Static.roundDown(fileSystem.getLength(), sectorsize)) {
+					&& total_bytes == Static.roundDown(fileSystem.getLength(), sectorsize)
+					&& sys_chunk_array_size >= 0 && sys_chunk_array_size <= 2048) {
 
 				return;
 			}
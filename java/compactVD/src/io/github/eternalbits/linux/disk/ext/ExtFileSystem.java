@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import io.github.eternalbits.disk.AllocationBitmap;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
 import io.github.eternalbits.disk.WrongHeaderException;
@@ -28,6 +29,7 @@ public class ExtFileSystem extends DiskFileSystem {
 	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
 
 	final ExtVolumeHeader header;
+	final AllocationBitmap bitmap;
 	
 	public ExtFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -35,6 +37,29 @@ public class ExtFileSystem extends DiskFileSystem {
 		this.diskLength = length;
 		
 		header = new ExtVolumeHeader(this, readImage(1024, ExtVolumeHeader.HEADER_SIZE));
+		
+		/* The super block validation checks that the size of a group bitmap data is exactly 
+		 * 	the size of one data block. The file system bitmap can be handled as a file 
+		 * 	with a number of block extents equal to the number of cluster groups.
+		 */
+		bitmap = new AllocationBitmap(layout.getImage(), header.firstDataBlock * (long)header.clusterSize, 
+				header.clusterSize, header.clustersCount - header.firstDataBlock, header.blockSize, false) {
+			@Override
+			protected long locate(long from) {
+				int readNumber = header.bitmapBlockOrMaker[(int)(from / header.blockSize)];
+				return readNumber > 0? diskOffset + readNumber * (long)header.blockSize + from % header.blockSize: -1;
+			}
+			@Override
+			protected void fill(long from, byte[] buffer, int start, int length) {
+			// Make the bitmap. Very unlikely to happen: if the bitmap is not initialized then no data
+			//	was ever written and the image block should be free. Format a populated disk to test.
+				int readOffset = (int)(from % header.blockSize);
+				int t = -header.bitmapBlockOrMaker[(int)(from / header.blockSize)];
+				for (int r = 0, s = 8*readOffset, i = start; r < length; r++, i++, s+=8) {
+					buffer[i] = s >= t? 0: s >= t-8? leaveMask[t%8]: (byte)0xFF;
+				}
+			}
+		};
 	}
 
 	@Override
@@ -54,14 +79,9 @@ public class ExtFileSystem extends DiskFileSystem {
 	}
 	
 	private final byte[] leaveMask = new byte[] {(byte)0xFF, 0x1, 0x3, 0x7, 0x0F, 0x1F, 0x3F, 0x7F};
-	private final byte[] enterMask = new byte[] {(byte)0xFF, (byte)0xFE, (byte)0xFC, (byte)0xF8, 
-			(byte)0xF0, (byte)0xE0, (byte)0xC0, (byte)0x80};
 	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		if (length == 0)
-			return false;
-		
+	public long findAllocated(long offset, long end) {
 		/* The allocation bitmap represents disk clusters. Each cluster is represented by a bit.
 		 * 	If the bit is set, the cluster has data or metadata. Disk clusters are organized in 
 		 * 	groups. Each group has a descriptor that contains, within other information, the 
@@ -71,55 +91,17 @@ public class ExtFileSystem extends DiskFileSystem {
 		 *  is cluster #1, not #0. The allocation status of cluster #0 is represented by the last 
 		 *  bit in the bitmap of the previous group allocation block.
 		 */
-		long oddset = offset - header.firstDataBlock * header.clusterSize;		// Yes, this is odd
-		int firstCluster = (int)(oddset / header.clusterSize);					// First cluster to check
-		int lastCluster = (int)((oddset + length - 1) / header.clusterSize);	// Last cluster to check 
-		if (firstCluster < 0 || lastCluster >= header.clustersCount				// Is cluster range valid?
-				- header.firstDataBlock) return true;
-		
-		int firstByte = firstCluster / 8;										// First byte to read
-		int lastByte = lastCluster / 8;											// Last byte to read
-		byte firstMask = enterMask[firstCluster % 8];							// Bits to ignore in first byte
-		byte lastMask = leaveMask[(lastCluster +1) % 8];						// Bits to ignore in last byte
-		
-		/* The super block validation checks that the size of a group bitmap data is exactly 
-		 * 	the size of one data block. The file system bitmap can be handled as a file 
-		 * 	with a number of block extents equal to the number of cluster groups.
-		 */
-		try {
-			int want = lastByte - firstByte + 1, into = 0;
-			byte[] buffer = new byte[want];
-			int from = firstByte;
-			while (want > 0) {
-				int readNumber = header.bitmapBlockOrMaker[from / header.blockSize];
-				int readOffset = from % header.blockSize;
-				int read = Math.min(want, header.blockSize - readOffset);
-				if (readNumber > 0) { // Read the bitmap from disk image
-					read = layout.getImage().readAll(diskOffset + readNumber * (long)header.blockSize
-							+ readOffset, buffer, into, read);
-					if (read == -1) return true;
-				} else {
-				// Make the bitmap. Very unlikely to happen: if the bitmap is not initialized then no data
-				//	was ever written and the image block should be free. Format a populated disk to test.
-					for (int r = 0, s = 8*readOffset, t = -readNumber, i = into; r < read; r++, i++, s+=8) {
-						buffer[i] = s >= t? 0: s >= t-8? leaveMask[t%8]: (byte)0xFF;
-					}
-				}
-				want -= read;
-				from += read;
-				into += read;
-			}
-			
-			buffer[0] &= firstMask;
-			buffer[buffer.length -1] &= lastMask;
-			for (int i = 0; i < buffer.length; i++)
-				if (buffer[i] != 0)
-					return true;
-			return false;
-			
-		} catch (IOException e) {}
-		
-		return true;
+		return bitmap.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		return bitmap.findFree(offset, end);
+	}
+	
+	@Override
+	public void release() {
+		bitmap.release();
 	}
 
 }
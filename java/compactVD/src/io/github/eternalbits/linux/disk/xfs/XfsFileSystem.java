@@ -20,14 +20,33 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import io.github.eternalbits.disk.BufferPool;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
+import io.github.eternalbits.disk.FreeSpaceIndex;
 import io.github.eternalbits.disk.WrongHeaderException;
 
 public class XfsFileSystem extends DiskFileSystem { // https://ftp.ntu.edu.tw/linux/utils/fs/xfs/docs/xfs_filesystem_structure.pdf
 	static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
+	private static final int AGF_MAGIC		= 0x58414746;	// "XAGF"
+	private static final int[] BNO_MAGIC	= {0x41425442, 0x41423342};	// "ABTB", "AB3B"
+	private static final int[] CNT_MAGIC	= {0x41425443, 0x41423343};	// "ABTC", "AB3C"
+	private static final int NO_SIBLING		= 0xFFFFFFFF;
+	
+	private static final int LOG_MAGIC		= 0xFEEDBABE;	// Log record header
+	private static final int BBSIZE			= 512;			// Log basic block
+	private static final int XFS_LOG		= 0xAA;			// Log operation client
+	private static final int UNMOUNT_TRANS	= 0x20;			// Log operation flag
+	private static final int UNMOUNT_TYPE	= 0x556E;		// Unmount record, in the byte order of the host
+	private static final int FMT_LINUX_LE	= 1;			// Log record format of a little-endian host
+	
+	private static final int INCOMPAT_NEEDSREPAIR = 0x10;
+
 	final XfsVolumeHeader header;
+	
+	private FreeSpaceIndex freeSpace = null;
+	private boolean freeSpaceRead = false;
 
 	public XfsFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -53,9 +72,189 @@ public class XfsFileSystem extends DiskFileSystem { // https://ftp.ntu.edu.tw/li
 		return ByteBuffer.wrap(buffer, 0, read).order(BYTE_ORDER);
 	}
 	
+	private ByteBuffer readFully(long offset, byte[] buffer) throws IOException {
+		if (layout.getImage().readAll(diskOffset + offset, buffer, 0, buffer.length) != buffer.length)
+			throw new IOException(String.format("%s: can not read %d bytes at %d", getType(), buffer.length, offset));
+		return ByteBuffer.wrap(buffer).order(BYTE_ORDER);
+	}
+	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		return true;
+	public long findAllocated(long offset, long end) {
+		FreeSpaceIndex index = getFreeSpace();
+		return index == null? super.findAllocated(offset, end): index.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		FreeSpaceIndex index = getFreeSpace();
+		return index == null? super.findFree(offset, end): index.findFree(offset, end);
+	}
+	
+	/* The free space is read on the first query. If the volume is not clean, or is not
+	 *  understood, there is no index and all bytes are allocated.
+	 */
+	private synchronized FreeSpaceIndex getFreeSpace() {
+		if (!freeSpaceRead) {
+			freeSpaceRead = true;
+			try {
+				if (isClean())
+					freeSpace = readFreeSpace();
+			} catch (IOException e) {
+				freeSpace = null;
+			}
+		}
+		return freeSpace;
+	}
+	
+	/**
+	 * Reads the free space of each allocation group from its AGF and the free space
+	 *  B+tree indexed by block number. The B+tree indexed by size must have the same
+	 *  records, and both must add up to the free blocks in the AGF.
+	 * 
+	 * @return	The free extents of the volume.
+	 * @throws IOException if the trees can not be read or do not match.
+	 */
+	private FreeSpaceIndex readFreeSpace() throws IOException {
+		FreeSpaceIndex index = new FreeSpaceIndex();
+		byte[] agf = new byte[header.sb_sectsize];
+		byte[] block = BufferPool.take(header.sb_blocksize);
+		try {
+			for (int ag = 0; ag < header.sb_agcount; ag++) {
+				ByteBuffer in = readFully(agBlock(ag, 0) + header.sb_sectsize, agf);
+				int length = in.getInt(12);
+				if (in.getInt(0) != AGF_MAGIC || in.getInt(8) != ag 
+						|| length <= 0 || length > header.sb_agblocks)
+					throw new IOException(String.format("%s: AGF %d is not valid", getType(), ag));
+				long freeBlocks = in.getInt(52) & 0xFFFFFFFFL;
+				long[] bno = readFreeTree(ag, in.getInt(16), in.getInt(28), length, BNO_MAGIC, block, index);
+				long[] cnt = readFreeTree(ag, in.getInt(20), in.getInt(32), length, CNT_MAGIC, block, null);
+				if (bno[0] != cnt[0] || bno[1] != cnt[1] || bno[1] != freeBlocks)
+					throw new IOException(String.format("%s: free space of AG %d does not match", getType(), ag));
+			}
+		} finally {
+			BufferPool.give(block);
+		}
+		return index;
+	}
+	
+	/**
+	 * Walks the leaves of a free space B+tree of an allocation group, from left to right.
+	 *  The records of both trees are {@code {startblock, blockcount}}.
+	 * 
+	 * @param ag		The allocation group.
+	 * @param root		The block number of the root in the group.
+	 * @param levels	The number of levels in the tree.
+	 * @param length	The number of blocks in the group.
+	 * @param magic		The magic numbers of the tree blocks, version 4 and 5.
+	 * @param block		A buffer of one file system block.
+	 * @param index		The index where the free extents are added, or {@code null}.
+	 * @return	The number of records and the sum of their block counts.
+	 * @throws IOException if a block can not be read or is not valid.
+	 */
+	private long[] readFreeTree(int ag, int root, int levels, int length, int[] magic, byte[] block, FreeSpaceIndex index) throws IOException {
+		boolean crc = (header.sb_versionnum & 0xF) == 5;
+		int hdr = crc? 56: 16;
+		int nodeRecs = (header.sb_blocksize - hdr) / 12;
+		int leafRecs = (header.sb_blocksize - hdr) / 8;
+		
+		long records = 0, blocks = 0, last = 0;
+		int agbno = root;
+		for (int level = levels - 1, visited = 0; agbno != NO_SIBLING; visited++) {
+			if (agbno < 0 || agbno >= length || visited > length || level < 0)
+				throw new IOException(String.format("%s: free space tree of AG %d is not valid", getType(), ag));
+			ByteBuffer in = readFully(agBlock(ag, agbno), block);
+			int numrecs = in.getShort(6) & 0xFFFF;
+			if (in.getInt(0) != magic[crc? 1: 0] || in.getShort(4) != level 
+					|| numrecs > (level == 0? leafRecs: nodeRecs))
+				throw new IOException(String.format("%s: free space block %d of AG %d is not valid", getType(), agbno, ag));
+			if (level > 0) {
+				if (numrecs == 0)
+					throw new IOException(String.format("%s: free space block %d of AG %d is empty", getType(), agbno, ag));
+				agbno = in.getInt(hdr + nodeRecs * 8);
+				level--;
+				continue;
+			}
+			for (int i = 0; i < numrecs; i++) {
+				long start = in.getInt(hdr + i * 8) & 0xFFFFFFFFL;
+				long count = in.getInt(hdr + i * 8 + 4) & 0xFFFFFFFFL;
+				if (count == 0 || start + count > length || (index != null && start < last))
+					throw new IOException(String.format("%s: free extent %d+%d of AG %d is not valid", getType(), start, count, ag));
+				if (index != null)
+					index.add(agBlock(ag, start), count * header.sb_blocksize);
+				last = start + count;
+				blocks += count;
+			}
+			records += numrecs;
+			agbno = in.getInt(12);
+		}
+		return new long[] {records, blocks};
+	}
+	
+	private long agBlock(long ag, long agbno) {
+		return (ag * header.sb_agblocks + agbno) * header.sb_blocksize;
+	}
+	
+	/**
+	 * Checks that the volume was unmounted clean, and that nothing in its state makes
+	 *  the free space trees unreliable. The last record of a clean internal log holds
+	 *  only the unmount operation, and ends where the next record would be written.
+	 * 
+	 * @return	True if the free space trees can be read.
+	 * @throws IOException if the log can not be read.
+	 */
+	private boolean isClean() throws IOException {
+		int version = header.sb_versionnum & 0xF;
+		if (header.sb_inprogress != 0 || (version != 4 && version != 5) 
+				|| (version == 5 && (header.sb_features_incompat & INCOMPAT_NEEDSREPAIR) != 0)
+				|| header.sb_logstart == 0 || header.sb_agblklog <= 0 || header.sb_agblklog > 31)
+			return false;
+		
+		long ag = header.sb_logstart >>> header.sb_agblklog;
+		long agbno = header.sb_logstart & ((1L << header.sb_agblklog) - 1);
+		long log = agBlock(ag, agbno);
+		long size = header.sb_logblocks * (long)header.sb_blocksize / BBSIZE;
+		if (ag >= header.sb_agcount || size <= 0 || log + size * BBSIZE > diskLength)
+			return false;
+		
+		// The head is the first block of a cycle before the cycle of the first block
+		byte[] bb = new byte[BBSIZE];
+		int first = cycle(log, 0, bb);
+		long low = 1, high = size;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (cycle(log, middle, bb) == first)
+				low = middle + 1;
+			else high = middle;
+		}
+		long head = low;
+		
+		// The last record header is before the head, with the same cycle
+		for (long back = 1; back <= Math.min(size, 2048); back++) {
+			long at = (head - back + size) % size;
+			ByteBuffer in = readFully(log + at * BBSIZE, bb);
+			if (in.getInt(0) != LOG_MAGIC)
+				continue;
+			if (in.getInt(4) != cycle(log, (head - 1 + size) % size, bb))
+				return false;
+			in = readFully(log + at * BBSIZE, bb);
+			int hversion = in.getInt(8), hlen = in.getInt(12), logops = in.getInt(40), fmt = in.getInt(300), hsize = in.getInt(320);
+			long hblocks = (hversion & 2) != 0 && hsize > 32768? (hsize + 32767) / 32768: 1;
+			if (logops != 1 || hlen <= 0 || (at + hblocks + (hlen + BBSIZE - 1) / BBSIZE) % size != head % size)
+				return false;
+			in = readFully(log + (at + hblocks) % size * BBSIZE, bb);
+			in.order(fmt == FMT_LINUX_LE? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN);
+			return (in.get(8) & 0xFF) == XFS_LOG && (in.get(9) & UNMOUNT_TRANS) != 0
+					&& (in.getShort(12) & 0xFFFF) == UNMOUNT_TYPE;
+		}
+		return false;
+	}
+	
+	/* The cycle of a log basic block. A record header has it in the second word, the
+	 *  other blocks in the first word.
+	 */
+	private int cycle(long log, long block, byte[] bb) throws IOException {
+		ByteBuffer in = readFully(log + block * BBSIZE, bb);
+		return in.getInt(0) == LOG_MAGIC? in.getInt(4): in.getInt(0);
 	}
 
 }
@@ -52,7 +52,19 @@ public class XfsVolumeHeader {
 	short	sb_inodesize;				// Size of the inode in bytes. The default is 256 to 2048 bytes.
 	short	sb_inopblock;				// Number of inodes per block. This is equivalent to sb_blocksize / sb_inodesize.
 	byte[]	sb_fname;					// Name for the filesystem (12 bytes). This value can be used in the mount command.
-	byte[]	sb_unused;					// 392 bytes
+	byte	sb_blocklog;				// log2 value of sb_blocksize. In other terms, sb_blocksize = 2^sb_blocklog.
+	byte	sb_sectlog;					// log2 value of sb_sectsize.
+	byte	sb_inodelog;				// log2 value of sb_inodesize.
+	byte	sb_inopblog;				// log2 value of sb_inopblock.
+	byte	sb_agblklog;				// log2 value of sb_agblocks (rounded up). Used to generate inode and block numbers.
+	byte	sb_rextslog;				// log2 value of sb_rextents.
+	byte	sb_inprogress;				// Flag specifying that the filesystem is being created.
+	byte	sb_imax_pct;				// Maximum percentage of filesystem space that can be used for inodes.
+	int		sb_features_compat;			// Read-write compatible feature flags (version 5 only).
+	int		sb_features_ro_compat;		// Read-only compatible feature flags (version 5 only).
+	int		sb_features_incompat;		// Read-write incompatible feature flags (version 5 only).
+	int		sb_features_log_incompat;	// Read-write incompatible feature flags for the log (version 5 only).
+	byte[]	sb_unused;					// 288 bytes
 	
 	int		agf_magicnum;				// Specifies the magic number for the AGF sector: "XAGF" (0x58414746).
 	byte[]	agf_unused;					// 508 bytes
@@ -89,7 +101,20 @@ public class XfsVolumeHeader {
 			sb_inodesize			= in.getShort();
 			sb_inopblock			= in.getShort();
 			sb_fname				= Static.getBytes(in, 12);
-			in.position(in.position() + 392);
+			sb_blocklog				= in.get();
+			sb_sectlog				= in.get();
+			sb_inodelog				= in.get();
+			sb_inopblog				= in.get();
+			sb_agblklog				= in.get();
+			sb_rextslog				= in.get();
+			sb_inprogress			= in.get();
+			sb_imax_pct				= in.get();
+			in.position(in.position() + 80);
+			sb_features_compat		= in.getInt();
+			sb_features_ro_compat	= in.getInt();
+			sb_features_incompat	= in.getInt();
+			sb_features_log_incompat = in.getInt();
+			in.position(in.position() + 288);
 			
 			agf_magicnum			= in.getInt();
 			in.position(in.position() + 508);
@@ -16,7 +16,6 @@
 
 package io.github.eternalbits.vbox.vdi;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -27,7 +26,9 @@ import java.util.UUID;
 
 import io.github.eternalbits.compactvd.Static;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 import io.github.eternalbits.disk.DiskImageJournal;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageProgress;
 import io.github.eternalbits.disk.InitializationException;
 import io.github.eternalbits.disk.WrongHeaderException;
@@ -53,6 +54,7 @@ public class VdiDiskImage extends DiskImage {
 	public VdiDiskImage(File file, long diskSize) throws IOException {
 		media = new RandomAccessFile(file, "rw");
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, "rw");
 			path = file.getPath();
 			readOnly = false;
 			
@@ -69,6 +71,8 @@ public class VdiDiskImage extends DiskImage {
 			dirty = false;
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -77,6 +81,7 @@ public class VdiDiskImage extends DiskImage {
 	public VdiDiskImage(File file, String mode) throws IOException, WrongHeaderException {
 		media = new RandomAccessFile(file, mode);
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, mode);
 			readOnly = mode.equals("r");
 			path = file.getPath();
 			
@@ -91,6 +96,8 @@ public class VdiDiskImage extends DiskImage {
 			setLayout(DiskLayouts.open(this));
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -99,6 +106,10 @@ public class VdiDiskImage extends DiskImage {
 	RandomAccessFile getMedia() {
 		return media;
 	}
+	
+	DiskImageMedia getAccess() {
+		return access;
+	}
 
 	@Override
 	protected synchronized void update() throws IOException {
@@ -141,6 +152,18 @@ public class VdiDiskImage extends DiskImage {
 		return "VDI";
 	}
 
+	@Override
+	protected long getFileOffset(long offset, int length) {
+		int blockNumber = (int)(offset / header.blockSize);
+		int blockOffset = (int)(offset % header.blockSize);
+		if (length <= 0 || offset + length > header.diskSize || blockOffset + length > header.blockSize)
+			return -1L;
+		int block = blockTable.get(blockNumber);
+		if (block < 0 || block >= header.blocksAllocated)
+			return -1L;
+		return header.offsetData + block * (long)header.blockSize + blockOffset;
+	}
+
 	@Override
 	public boolean hasData(long offset, int length) {
 		if (length <= 0 || offset >= header.diskSize)
@@ -205,7 +228,7 @@ public class VdiDiskImage extends DiskImage {
 				blockTable.update(blockNumber, blockOffset, out, start, max);
 				touched = true;
 			}
-			else {
+			else if (!isZero(out, start, max)) {
 				blockTable.create(blockNumber, blockOffset, out, start, max);
 				touched = true;
 				dirty = true;
@@ -251,20 +274,16 @@ public class VdiDiskImage extends DiskImage {
 
 	@Override
 	public long getOptimizedLength() {
-		return header.offsetData + (long)header.blockSize 
-				* blockTable.getDataBlocksCount();
+		return lengthOf(blockTable.getDataBlocksCount());
+	}
+	
+	/** Returns the length of the image file with {@code blocks} data blocks. */
+	private long lengthOf(int blocks) {
+		return header.offsetData + (long)header.blockSize * blocks;
 	}
 
 	@Override
-	public synchronized void compact() throws IOException {
-		if (readOnly)
-			throw new IOException(IMAGE_IS_READ_ONLY);
-		
-		/* Delay metadata update until a block swap is about to happen.
-		 */
-		boolean needsInitialUpdate = dirty;
-		boolean needsFinalUpdate = false;
-		
+	public synchronized DiskImageCompactPlan planCompact() {
 		int[] reverseMap = new int[header.blocksAllocated];
 		Arrays.fill(reverseMap, -1);
 		
@@ -274,43 +293,44 @@ public class VdiDiskImage extends DiskImage {
 			}
 		}
 		
-		Progress progress = new Progress(DiskImageProgress.COMPACT, 
-				DiskImage.countCompactMoves(reverseMap));
-		Thread thisThread = Thread.currentThread();
+		return new DiskImageCompactPlan(reverseMap, header.blockSize, getPlanStrategy());
+	}
 
-		byte[] buffer = new byte[header.blockSize];
+	@Override
+	public synchronized void compact() throws IOException {
+		if (readOnly)
+			throw new IOException(IMAGE_IS_READ_ONLY);
+		
+		/* Delay metadata update until a block swap is about to happen.
+		 */
+		boolean needsInitialUpdate = dirty;
+		boolean needsFinalUpdate = false;
+		
+		DiskImageCompactPlan plan = planCompact();
+		Progress progress = new Progress(DiskImageProgress.COMPACT, plan.getMoves() + plan.getHoles());
+		
 		long length = header.blockSize;
-		int s = reverseMap.length;
-
-		for (int i = 0; i < s && !thisThread.isInterrupted(); i++) {
-			if (reverseMap[i] == -1) { // Found a "hole" in the image
-				for (s = s - 1; s > i; s--) {
-					if (reverseMap[s] != -1) { // This is the last mapped block
-						media.seek(header.offsetData + s * length);
-						media.readFully(buffer);
-						if (needsInitialUpdate) {
-						//	put journal id in the block that will be overwritten
-							journaledUpdate(header.offsetData + i * length);
-							needsInitialUpdate = false;
-						}
-						media.seek(header.offsetData + i * length);
-						media.write(buffer);
-						progress.step(1);
-						touched = true;
-						reverseMap[i] = reverseMap[s];
-						reverseMap[s] = -1;
-						blockTable.map(reverseMap[i], i);
-						dirty = needsFinalUpdate = true;
-						break;
-					}
-				}
+		CompactMoves moves = new CompactMoves(plan, needsInitialUpdate) {
+			@Override
+			protected long offsetOf(int index) {
+				return header.offsetData + index * length;
 			}
-		}
+			@Override
+			protected void commit(long offset) throws IOException {
+				journaledUpdate(offset);
+			}
+			@Override
+			protected void map(int block, int index) {
+				blockTable.map(block, index);
+			}
+		};
+		int s = moves.run(progress);
+		if (moves.moved())
+			dirty = needsFinalUpdate = true;
 		
 		if (needsFinalUpdate || header.blocksAllocated > s 
 				|| media.length() > header.offsetData + s * length) {
 			
-			// s is unreliable if the task was interrupted
 			if (header.blocksAllocated > s)
 				header.blocksAllocated = s;
 			
@@ -328,31 +348,15 @@ public class VdiDiskImage extends DiskImage {
 		if (readOnly)
 			throw new IOException(IMAGE_IS_READ_ONLY);
 				
-		Progress progress = new Progress(DiskImageProgress.COPY, countDataReads(source));
-		Thread thisThread = Thread.currentThread();
+		int blocks = countDataReads(source);
+		Progress progress = new Progress(DiskImageProgress.COPY, blocks);
 		
 		blockTable.reset();
 		dirty = true;
+		preallocate(lengthOf(blocks));
 		
 		synchronized(source) {
-			
-			diskPointer = 0L;
-			byte[] buffer = new byte[getImageBlockSize()];
-			for (int i = 0, s = getImageBlocksCount(); i < s && !thisThread.isInterrupted(); i++) {
-				if (!source.hasData(diskPointer, buffer.length)) {
-					diskPointer += buffer.length;
-				} else {
-					int read = source.readAll(diskPointer, buffer, 0, buffer.length);
-					if (read < buffer.length) {
-						if (read < 0 || diskPointer + read < getDiskSize())
-							throw new EOFException(source.toString());
-						Arrays.fill(buffer, read, buffer.length, (byte)0);
-					}
-					write(buffer, 0, buffer.length);
-					progress.step(1);
-					touched = true;
-				}
-			}
+			copyBlocks(source, progress, true);
 		}
 		
 		media.setLength(media.getFilePointer());
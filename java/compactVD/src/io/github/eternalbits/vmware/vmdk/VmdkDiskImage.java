@@ -16,7 +16,6 @@
 
 package io.github.eternalbits.vmware.vmdk;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -28,7 +27,9 @@ import java.util.UUID;
 
 import io.github.eternalbits.compactvd.Static;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 import io.github.eternalbits.disk.DiskImageJournal;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageProgress;
 import io.github.eternalbits.disk.WrongHeaderException;
 import io.github.eternalbits.disks.DiskLayouts;
@@ -55,6 +56,7 @@ public class VmdkDiskImage extends DiskImage {
 	public VmdkDiskImage(File file, long diskSize) throws IOException {
 		media = new RandomAccessFile(file, "rw");
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, "rw");
 			path = file.getPath();
 			readOnly = false;
 			
@@ -81,6 +83,8 @@ public class VmdkDiskImage extends DiskImage {
 			dirty = false;
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -89,6 +93,7 @@ public class VmdkDiskImage extends DiskImage {
 	public VmdkDiskImage(File file, String mode) throws IOException, WrongHeaderException {
 		media = new RandomAccessFile(file, mode);
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, mode);
 			readOnly = mode.equals("r");
 			path = file.getPath();
 			
@@ -102,6 +107,8 @@ public class VmdkDiskImage extends DiskImage {
 			setLayout(DiskLayouts.open(this));
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -120,6 +127,10 @@ public class VmdkDiskImage extends DiskImage {
 	RandomAccessFile getMedia() {
 		return media;
 	}
+	
+	DiskImageMedia getAccess() {
+		return access;
+	}
 
 	@Override
 	protected synchronized void update() throws IOException {
@@ -182,6 +193,18 @@ public class VmdkDiskImage extends DiskImage {
 		return "VMDK";
 	}
 
+	@Override
+	protected long getFileOffset(long offset, int length) {
+		int grainNumber = (int)(offset / header.blockSize);
+		int grainOffset = (int)(offset % header.blockSize);
+		if (length <= 0 || offset + length > header.diskSize || grainOffset + length > header.blockSize)
+			return -1L;
+		int sector = grainTable.get(grainNumber);
+		if (sector < header.firstSector || sector >= header.nextSector)
+			return -1L;
+		return sector * VmdkSparseHeader.SECTOR_LONG + grainOffset;
+	}
+
 	@Override
 	public boolean hasData(long offset, int length) {
 		if (length <= 0 || offset >= header.diskSize)
@@ -246,7 +269,7 @@ public class VmdkDiskImage extends DiskImage {
 				grainTable.update(blockNumber, blockOffset, out, start, max);
 				touched = true;
 			}
-			else {
+			else if (!isZero(out, start, max)) {
 				grainTable.create(blockNumber, blockOffset, out, start, max);
 				touched = true;
 				dirty = true;
@@ -292,10 +315,29 @@ public class VmdkDiskImage extends DiskImage {
 
 	@Override
 	public long getOptimizedLength() {
-		return (header.overHead + grainTable.getDataGrainsCount() 
+		return lengthOf(grainTable.getDataGrainsCount());
+	}
+	
+	/** Returns the length of the image file with {@code grains} data grains. */
+	private long lengthOf(int grains) {
+		return (header.overHead + grains 
 			* header.grainSize) * VmdkSparseHeader.SECTOR_LONG;
 	}
 
+	@Override
+	public synchronized DiskImageCompactPlan planCompact() {
+		int[] reverseMap = new int[indexOf(header.nextSector)];
+		Arrays.fill(reverseMap, -1);
+		
+		for (int i = 0, s = header.gteCount; i < s; i++) {
+			if (grainTable.get(i) != 0) {
+				reverseMap[indexOf(grainTable.get(i))] = i;
+			}
+		}
+		
+		return new DiskImageCompactPlan(reverseMap, header.blockSize, getPlanStrategy());
+	}
+
 	@Override
 	public synchronized void compact() throws IOException {
 		if (readOnly)
@@ -306,51 +348,30 @@ public class VmdkDiskImage extends DiskImage {
 		boolean needsInitialUpdate = dirty;
 		boolean needsFinalUpdate = false;
 		
-		int[] reverseMap = new int[indexOf(header.nextSector)];
-		Arrays.fill(reverseMap, -1);
+		DiskImageCompactPlan plan = planCompact();
+		Progress progress = new Progress(DiskImageProgress.COMPACT, plan.getMoves() + plan.getHoles());
 		
-		for (int i = 0, s = header.gteCount; i < s; i++) {
-			if (grainTable.get(i) != 0) {
-				reverseMap[indexOf(grainTable.get(i))] = i;
+		CompactMoves moves = new CompactMoves(plan, needsInitialUpdate) {
+			@Override
+			protected long offsetOf(int index) {
+				return sectorOf(index) * VmdkSparseHeader.SECTOR_LONG;
 			}
-		}
-		
-		Progress progress = new Progress(DiskImageProgress.COMPACT, 
-				DiskImage.countCompactMoves(reverseMap));
-		Thread thisThread = Thread.currentThread();
-		
-		byte[] buffer = new byte[header.blockSize];
-		int s = reverseMap.length;
-
-		for (int i = 0; i < s && !thisThread.isInterrupted(); i++) {
-			if (reverseMap[i] == -1) { // Found a "hole" in the image
-				for (s = s - 1; s > i; s--) {
-					if (reverseMap[s] != -1) { // This is the last mapped block
-						media.seek(sectorOf(s) * VmdkSparseHeader.SECTOR_LONG);
-						media.readFully(buffer);
-						if (needsInitialUpdate) {
-						//	put journal id in the block that will be overwritten
-							journaledUpdate(sectorOf(i) * VmdkSparseHeader.SECTOR_LONG);
-							needsInitialUpdate = false;
-						}
-						media.seek(sectorOf(i) * VmdkSparseHeader.SECTOR_LONG);
-						media.write(buffer);
-						progress.step(1);
-						touched = true;
-						reverseMap[i] = reverseMap[s];
-						reverseMap[s] = -1;
-						grainTable.map(reverseMap[i], sectorOf(i));
-						dirty = needsFinalUpdate = true;
-						break;
-					}
-				}
+			@Override
+			protected void commit(long offset) throws IOException {
+				journaledUpdate(offset);
 			}
-		}
+			@Override
+			protected void map(int block, int index) {
+				grainTable.map(block, sectorOf(index));
+			}
+		};
+		int s = moves.run(progress);
+		if (moves.moved())
+			dirty = needsFinalUpdate = true;
 		
 		if (needsFinalUpdate || header.nextSector > sectorOf(s) 
 				|| media.length() > sectorOf(s) * VmdkSparseHeader.SECTOR_LONG) {
 			
-			// s is unreliable if the task was interrupted
 			if (header.nextSector > sectorOf(s))
 				header.nextSector = sectorOf(s);
 			
@@ -368,31 +389,15 @@ public class VmdkDiskImage extends DiskImage {
 		if (readOnly)
 			throw new IOException(IMAGE_IS_READ_ONLY);
 		
-		Progress progress = new Progress(DiskImageProgress.COPY, countDataReads(source));
-		Thread thisThread = Thread.currentThread();
+		int grains = countDataReads(source);
+		Progress progress = new Progress(DiskImageProgress.COPY, grains);
 		
 		grainTable.reset();
 		dirty = true;
+		preallocate(lengthOf(grains));
 		
 		synchronized(source) {
-			
-			diskPointer = 0L;
-			byte[] buffer = new byte[getImageBlockSize()];
-			for (int i = 0, s = getImageBlocksCount(); i < s && !thisThread.isInterrupted(); i++) {
-				if (!source.hasData(diskPointer, buffer.length)) {
-					diskPointer += buffer.length;
-				} else {
-					int read = source.readAll(diskPointer, buffer, 0, buffer.length);
-					if (read < buffer.length) {
-						if (read < 0 || diskPointer + read < getDiskSize())
-							throw new EOFException(source.toString());
-						Arrays.fill(buffer, read, buffer.length, (byte)0);
-					}
-					write(buffer, 0, buffer.length);
-					progress.step(1);
-					touched = true;
-				}
-			}
+			copyBlocks(source, progress, true);
 		}
 		
 		media.setLength(media.getFilePointer());
@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 
+import io.github.eternalbits.disk.BufferPool;
 import io.github.eternalbits.disk.DiskImageBlockTable;
 import io.github.eternalbits.disk.InitializationException;
 
@@ -76,31 +77,38 @@ class VmdkGrainTable extends DiskImageBlockTable {
 			Arrays.fill(in, start, start + length, (byte)0);
 			return length;
 		}
-		image.getMedia().seek(grainMap[blockNumber] * VmdkSparseHeader.SECTOR_LONG + blockOffset);
-		return image.getMedia().read(in, start, length);
+		return image.getAccess().read(grainMap[blockNumber] * VmdkSparseHeader.SECTOR_LONG + blockOffset, in, start, length);
 	}
 
 	void update(int blockNumber, int blockOffset, byte[] out, int start, int length) throws IOException {
-		image.getMedia().seek(grainMap[blockNumber] * VmdkSparseHeader.SECTOR_LONG + blockOffset);
-		image.getMedia().write(out, start, length);
+		writeData(image, grainMap[blockNumber] * VmdkSparseHeader.SECTOR_LONG + blockOffset, out, start, length);
 	}
 
 	void create(int blockNumber, int blockOffset, byte[] out, int start, int length) throws IOException {
 		
-		image.getMedia().seek(header.nextSector * VmdkSparseHeader.SECTOR_LONG);
+		long offset = header.nextSector * VmdkSparseHeader.SECTOR_LONG;
 		if (out == null || blockOffset != 0 || length != header.blockSize) {
 			
-			byte[] zero = new byte[header.blockSize];
+			byte[] zero = BufferPool.takeZeroed(header.blockSize);
 			System.arraycopy(out, start, zero, blockOffset, length);
-			image.getMedia().write(zero);
+			writeData(image, offset, zero, 0, zero.length);
+			BufferPool.give(zero);
 			
 		} else { //write from buffer
-			image.getMedia().write(out, start, length);
+			writeData(image, offset, out, start, length);
 		}
 		
-		grainMap[blockNumber] = header.nextSector;
-		header.nextSector += header.grainSectors;
-		dataGrainsCount++;
+		allocate(blockNumber);
+	}
+
+	@Override
+	protected long allocate(int blockNumber) {
+		if (!exists(blockNumber)) {
+			grainMap[blockNumber] = header.nextSector;
+			header.nextSector += header.grainSectors;
+			dataGrainsCount++;
+		}
+		return getOffset(blockNumber);
 	}
 
 	int getDataGrainsCount() {
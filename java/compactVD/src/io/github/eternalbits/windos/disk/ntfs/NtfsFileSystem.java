@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import io.github.eternalbits.disk.AllocationBitmap;
 import io.github.eternalbits.disk.DiskFileSystem;
 import io.github.eternalbits.disk.DiskLayout;
 import io.github.eternalbits.disk.InitializationException;
@@ -36,6 +37,7 @@ public class NtfsFileSystem extends DiskFileSystem {
 	final NtfsBootSector header;
 	final NtfsFileRecord bitmapFile;
 	final NtfsFileRecord logFile;
+	final AllocationBitmap bitmap;
 	
 	public NtfsFileSystem(DiskLayout layout, long offset, long length) throws IOException, WrongHeaderException {
 		this.layout		= layout;
@@ -52,6 +54,12 @@ public class NtfsFileSystem extends DiskFileSystem {
 			
 			if (!isJournalEmpty())
 				throw new InitializationException("The journal is not empty");
+			bitmap = new AllocationBitmap(layout.getImage(), 0, header.clusterSize, header.clustersCount, header.clusterSize, false) {
+				@Override
+				protected long locate(long from) throws IOException {
+					return diskOffset + bitmapFile.getCluster(from) * header.clusterSize + from % header.clusterSize;
+				}
+			};
 			return;
 			
 		}
@@ -98,55 +106,23 @@ public class NtfsFileSystem extends DiskFileSystem {
 		return "Windows NT File System";
 	}
 
-	private final byte[] leaveMask = new byte[] {(byte)0xFF, 0x1, 0x3, 0x7, 0x0F, 0x1F, 0x3F, 0x7F};
-	private final byte[] enterMask = new byte[] {(byte)0xFF, (byte)0xFE, (byte)0xFC, (byte)0xF8, 
-			(byte)0xF0, (byte)0xE0, (byte)0xC0, (byte)0x80};
-	
 	@Override
-	public boolean isAllocated(long offset, long length) {
-		if (length == 0)
-			return false;
-		
+	public long findAllocated(long offset, long end) {
 		/* The allocation bitmap represents logical clusters. Each cluster is represented by a bit.
 		 * 	If the bit is set, the cluster has data or metadata. The first cluster is represented
 		 *  by the least significant bit of the first byte.
 		 */
-		long firstCluster = offset / header.clusterSize;					// First cluster to check
-		long lastCluster = (offset + length - 1) / header.clusterSize;		// Last cluster to check
-		if (firstCluster < 0 || lastCluster >= header.clustersCount)		// Is cluster range valid?
-			return true;
-		
-		long firstByte = firstCluster / 8;									// First byte to read
-		long lastByte = lastCluster / 8;									// Last byte to read
-		byte firstMask = enterMask[(int) (firstCluster % 8)];				// Bits to ignore in first byte
-		byte lastMask = leaveMask[(int) ((lastCluster + 1) % 8)];			// Bits to ignore in last byte
-		
-		try {
-			int want = (int) (lastByte - firstByte + 1), into = 0;
-			byte[] buffer = new byte[want];
-			long from = firstByte;
-			while (want > 0) {
-				long readCluster = bitmapFile.getCluster(from);
-				int readOffset = (int) (from % header.clusterSize);
-				int read = Math.min(want, header.clusterSize - readOffset);
-				read = layout.getImage().readAll(diskOffset + readCluster * header.clusterSize 
-						+ readOffset, buffer, into, read);
-				if (read == -1) return true;
-				want -= read;
-				from += read;
-				into += read;
-			}
-			
-			buffer[0] &= firstMask;
-			buffer[buffer.length -1] &= lastMask;
-			for (int i = 0; i < buffer.length; i++)
-				if (buffer[i] != 0)
-					return true;
-			return false;
-			
-		} catch (IOException e) {}
-		
-		return true;
+		return bitmap.findAllocated(offset, end);
+	}
+	
+	@Override
+	public long findFree(long offset, long end) {
+		return bitmap.findFree(offset, end);
+	}
+	
+	@Override
+	public void release() {
+		bitmap.release();
 	}
 
 }
@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 
+import io.github.eternalbits.disk.BufferPool;
 import io.github.eternalbits.disk.DiskImageBlockTable;
 import io.github.eternalbits.disk.InitializationException;
 
@@ -98,29 +99,27 @@ class VhdBlockAllocationTable extends DiskImageBlockTable {
 			Arrays.fill(in, start, start + length, (byte)0);
 			return length;
 		}
-		image.getMedia().seek((blockMap[blockNumber] + header.bitmapSectors) * SECTOR_LONG + blockOffset);
-		return image.getMedia().read(in, start, length);
+		return image.getAccess().read((blockMap[blockNumber] + header.bitmapSectors) * SECTOR_LONG + blockOffset, in, start, length);
 	}
 
 	void update(int blockNumber, int blockOffset, byte[] out, int start, int length) throws IOException {
-		image.getMedia().seek((blockMap[blockNumber] + header.bitmapSectors) * SECTOR_LONG + blockOffset);
-		image.getMedia().write(out, start, length);
+		writeData(image, (blockMap[blockNumber] + header.bitmapSectors) * SECTOR_LONG + blockOffset, out, start, length);
 	}
 
 	void create(int blockNumber, int blockOffset, byte[] out, int start, int length) throws IOException {
 		
-		image.getMedia().seek(header.nextSector * SECTOR_LONG);
-		byte[] bits = new byte[header.bitmapSectors * (int)SECTOR_LONG];
-		Arrays.fill(bits, (byte)~0); image.getMedia().write(bits);
+		writeBitmap();
 		
+		long offset = (header.nextSector + header.bitmapSectors) * SECTOR_LONG;
 		if (out == null || blockOffset != 0 || length != header.blockSize) {
 			
-			byte[] zero = new byte[header.blockSize];
+			byte[] zero = BufferPool.takeZeroed(header.blockSize);
 			System.arraycopy(out, start, zero, blockOffset, length);
-			image.getMedia().write(zero);
+			writeData(image, offset, zero, 0, zero.length);
+			BufferPool.give(zero);
 			
 		} else { //write from buffer
-			image.getMedia().write(out, start, length);
+			writeData(image, offset, out, start, length);
 		}
 		
 		blockMap[blockNumber] = header.nextSector;
@@ -128,6 +127,25 @@ class VhdBlockAllocationTable extends DiskImageBlockTable {
 		dataBlocksCount++;
 	}
 
+	@Override
+	protected long allocate(int blockNumber) throws IOException {
+		if (!exists(blockNumber)) {
+			writeBitmap();
+			blockMap[blockNumber] = header.nextSector;
+			header.nextSector += header.blockSectors;
+			dataBlocksCount++;
+		}
+		return getOffset(blockNumber) + header.bitmapSectors * SECTOR_LONG;
+	}
+	
+	/* The sector bitmap of a new block, all sectors with data, at the end of the file.
+	 */
+	private void writeBitmap() throws IOException {
+		image.getMedia().seek(header.nextSector * SECTOR_LONG);
+		byte[] bits = new byte[header.bitmapSectors * (int)SECTOR_LONG];
+		Arrays.fill(bits, (byte)~0); image.getMedia().write(bits);
+	}
+
 	int getDataBlocksCount() {
 		return dataBlocksCount;
 	}
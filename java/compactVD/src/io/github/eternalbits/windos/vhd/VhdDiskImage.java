@@ -16,7 +16,6 @@
 
 package io.github.eternalbits.windos.vhd;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -28,7 +27,9 @@ import java.util.UUID;
 
 import io.github.eternalbits.compactvd.Static;
 import io.github.eternalbits.disk.DiskImage;
+import io.github.eternalbits.disk.DiskImageCompactPlan;
 import io.github.eternalbits.disk.DiskImageJournal;
+import io.github.eternalbits.disk.DiskImageMedia;
 import io.github.eternalbits.disk.DiskImageProgress;
 import io.github.eternalbits.disk.WrongHeaderException;
 import io.github.eternalbits.disks.DiskLayouts;
@@ -55,6 +56,7 @@ public class VhdDiskImage extends DiskImage {
 	public VhdDiskImage(File file, long diskSize) throws IOException {
 		media = new RandomAccessFile(file, "rw");
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, "rw");
 			path = file.getPath();
 			readOnly = false;
 			
@@ -75,6 +77,8 @@ public class VhdDiskImage extends DiskImage {
 			dirty = false;
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -83,6 +87,7 @@ public class VhdDiskImage extends DiskImage {
 	public VhdDiskImage(File file, String mode) throws IOException, WrongHeaderException {
 		media = new RandomAccessFile(file, mode);
 		try { // Always close media on Exception
+			access = DiskImageMedia.open(this, file, mode);
 			readOnly = mode.equals("r");
 			path = file.getPath();
 			
@@ -95,6 +100,8 @@ public class VhdDiskImage extends DiskImage {
 			setLayout(DiskLayouts.open(this));
 		}
 		catch (Exception e) {
+			if (access != null)
+				access.close();
 			media.close();
 			throw e;
 		}
@@ -103,6 +110,10 @@ public class VhdDiskImage extends DiskImage {
 	RandomAccessFile getMedia() {
 		return media;
 	}
+	
+	DiskImageMedia getAccess() {
+		return access;
+	}
 
 	/**
 	 * Returns the VHD checksum of {@code length} bytes before the current
@@ -180,6 +191,18 @@ public class VhdDiskImage extends DiskImage {
 		return "VHD";
 	}
 
+	@Override
+	protected long getFileOffset(long offset, int length) {
+		int blockNumber = (int)(offset / header.blockSize);
+		int blockOffset = (int)(offset % header.blockSize);
+		if (length <= 0 || offset + length > footer.currentSize || blockOffset + length > header.blockSize)
+			return -1L;
+		int sector = blockTable.get(blockNumber);
+		if (sector < header.firstSector || sector >= header.nextSector)
+			return -1L;
+		return (sector + header.bitmapSectors) * (long)SECTOR_SIZE + blockOffset;
+	}
+
 	@Override
 	public boolean hasData(long offset, int length) {
 		if (length <= 0 || offset >= footer.currentSize)
@@ -244,7 +267,7 @@ public class VhdDiskImage extends DiskImage {
 				blockTable.update(blockNumber, blockOffset, out, start, max);
 				touched = true;
 			}
-			else {
+			else if (!isZero(out, start, max)) {
 				blockTable.create(blockNumber, blockOffset, out, start, max);
 				touched = true;
 				dirty = true;
@@ -290,10 +313,29 @@ public class VhdDiskImage extends DiskImage {
 
 	@Override
 	public long getOptimizedLength() {
-		return (header.firstSector + (long)blockTable.getDataBlocksCount() 
+		return lengthOf(blockTable.getDataBlocksCount());
+	}
+	
+	/** Returns the length of the image file with {@code blocks} data blocks. */
+	private long lengthOf(int blocks) {
+		return (header.firstSector + (long)blocks 
 			* header.blockSectors) * SECTOR_SIZE + VhdDiskFooter.FOOTER_SIZE;
 	}
 
+	@Override
+	public synchronized DiskImageCompactPlan planCompact() {
+		int[] reverseMap = new int[indexOf(header.nextSector)];
+		Arrays.fill(reverseMap, -1);
+		
+		for (int i = 0, s = header.maxTableEntries; i < s; i++) {
+			if (blockTable.get(i) != -1) {
+				reverseMap[indexOf(blockTable.get(i))] = i;
+			}
+		}
+		
+		return new DiskImageCompactPlan(reverseMap, header.blockSectors * SECTOR_SIZE, getPlanStrategy());
+	}
+
 	@Override
 	public synchronized void compact() throws IOException {
 		if (readOnly)
@@ -304,51 +346,30 @@ public class VhdDiskImage extends DiskImage {
 		boolean needsInitialUpdate = dirty;
 		boolean needsFinalUpdate = false;
 		
-		int[] reverseMap = new int[indexOf(header.nextSector)];
-		Arrays.fill(reverseMap, -1);
+		DiskImageCompactPlan plan = planCompact();
+		Progress progress = new Progress(DiskImageProgress.COMPACT, plan.getMoves() + plan.getHoles());
 		
-		for (int i = 0, s = header.maxTableEntries; i < s; i++) {
-			if (blockTable.get(i) != -1) {
-				reverseMap[indexOf(blockTable.get(i))] = i;
+		CompactMoves moves = new CompactMoves(plan, needsInitialUpdate) {
+			@Override
+			protected long offsetOf(int index) {
+				return sectorOf(index) * (long)SECTOR_SIZE;
 			}
-		}
-		
-		Progress progress = new Progress(DiskImageProgress.COMPACT, 
-				DiskImage.countCompactMoves(reverseMap));
-		Thread thisThread = Thread.currentThread();
-		
-		byte[] buffer = new byte[header.blockSectors * SECTOR_SIZE];
-		int s = reverseMap.length;
-
-		for (int i = 0; i < s && !thisThread.isInterrupted(); i++) {
-			if (reverseMap[i] == -1) { // Found a "hole" in the image
-				for (s = s - 1; s > i; s--) {
-					if (reverseMap[s] != -1) { // This is the last mapped block
-						media.seek(sectorOf(s) * (long)SECTOR_SIZE);
-						media.readFully(buffer);
-						if (needsInitialUpdate) {
-						//	put journal id in the block that will be overwritten
-							journaledUpdate(sectorOf(i) * (long)SECTOR_SIZE);
-							needsInitialUpdate = false;
-						}
-						media.seek(sectorOf(i) * (long)SECTOR_SIZE);
-						media.write(buffer);
-						progress.step(1);
-						touched = true;
-						reverseMap[i] = reverseMap[s];
-						reverseMap[s] = -1;
-						blockTable.map(reverseMap[i], sectorOf(i));
-						dirty = needsFinalUpdate = true;
-						break;
-					}
-				}
+			@Override
+			protected void commit(long offset) throws IOException {
+				journaledUpdate(offset);
 			}
-		}
+			@Override
+			protected void map(int block, int index) {
+				blockTable.map(block, sectorOf(index));
+			}
+		};
+		int s = moves.run(progress);
+		if (moves.moved())
+			dirty = needsFinalUpdate = true;
 		
 		if (needsFinalUpdate || header.nextSector > sectorOf(s) 
 				|| media.length() > sectorOf(s) * (long)SECTOR_SIZE + VhdDiskFooter.FOOTER_SIZE) {
 			
-			// s is unreliable if the task was interrupted
 			if (header.nextSector > sectorOf(s))
 				header.nextSector = sectorOf(s);
 			
@@ -366,31 +387,15 @@ public class VhdDiskImage extends DiskImage {
 		if (readOnly)
 			throw new IOException(IMAGE_IS_READ_ONLY);
 		
-		Progress progress = new Progress(DiskImageProgress.COPY, countDataReads(source));
-		Thread thisThread = Thread.currentThread();
+		int blocks = countDataReads(source);
+		Progress progress = new Progress(DiskImageProgress.COPY, blocks);
 		
 		blockTable.reset();
 		dirty = true;
+		preallocate(lengthOf(blocks));
 		
 		synchronized(source) {
-			
-			diskPointer = 0L;
-			byte[] buffer = new byte[getImageBlockSize()];
-			for (int i = 0, s = getImageBlocksCount(); i < s && !thisThread.isInterrupted(); i++) {
-				if (!source.hasData(diskPointer, buffer.length)) {
-					diskPointer += buffer.length;
-				} else {
-					int read = source.readAll(diskPointer, buffer, 0, buffer.length);
-					if (read < buffer.length) {
-						if (read < 0 || diskPointer + read < getDiskSize())
-							throw new EOFException(source.toString());
-						Arrays.fill(buffer, read, buffer.length, (byte)0);
-					}
-					write(buffer, 0, buffer.length);
-					progress.step(1);
-					touched = true;
-				}
-			}
+			copyBlocks(source, progress, true);
 		}
 		
 		media.setLength(media.getFilePointer() + VhdDiskFooter.FOOTER_SIZE);
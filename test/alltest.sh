@@ -9,3 +9,7 @@
 ./onetest.sh 3ntfs.vmdk VMDK 937805D77D9C9692E4E8110295E0FFD3 D686E7C0485B4475294C52C95C83A654
 ./onetest.sh 3hfs.vhd   VHD  E4D0A3A2F477D1484F55A360BE021310 5FB0D2AA57B5EF6A02909D64B2826351
 ./onetest.sh apfs.vmdk  VMDK 36938E4495C665078B33A94EE9690557 237122EA82006B61628BE3893B453C42
+./onetest.sh xfs.vdi    VDI  2949D2EC0206899DC311FB2EFC20AE74 48BDDC3DD9A244F1E6D73FCB1BA48518
+./onetest.sh xfslog.vhd VHD  EDC82BA58CB43D471FB3EC60362C3218 EDC82BA58CB43D471FB3EC60362C3218
+./onetest.sh btrfs.vmdk VMDK 20255FDCB80BD176594AB7999BF1A90D BD5310A339A16834C2407352E4B98FE5
+./onetest.sh btrfslog.vdi VDI  D23A677DA4AB6DC0EE50EA60DCB8CC68 D23A677DA4AB6DC0EE50EA60DCB8CC68
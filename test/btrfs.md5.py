@@ -0,0 +1,49 @@
+import struct,sys,hashlib
+# Prints the MD5 of each file in the root directory of the Btrfs file system of
+#  a RAW disk, as btrfs.md5 lists them: python3 btrfs.md5.py disk.raw
+# The disk is read as mkbtrfs.py writes it, and every tree node must have a
+#  valid CRC32C, as the super block.
+T=[]
+for n in range(256):
+    c=n
+    for _ in range(8): c=(c>>1)^(0x82F63B78 if c&1 else 0)
+    T.append(c)
+def csum(data,crc=0xFFFFFFFF):
+    for b in data: crc=T[(crc^b)&255]^(crc>>8)
+    return crc^0xFFFFFFFF
+f=open(sys.argv[1],'rb')
+mbr=f.read(512); P=struct.unpack_from('<I',mbr,454)[0]*512
+def rd(off,n): f.seek(P+off); return f.read(n)
+sb=rd(65536,4096)
+assert struct.unpack_from('<I',sb)[0]==csum(sb[32:]),'super block csum'
+root,chunk_root=struct.unpack_from('<QQ',sb,80); NS=struct.unpack_from('<I',sb,148)[0]
+chunks={}
+def chunk(b,o,logical):
+    ln=struct.unpack_from('<Q',b,o)[0]; n=struct.unpack_from('<H',b,o+44)[0]
+    chunks[logical]=(ln,struct.unpack_from('<Q',b,o+48+8)[0])
+    return 48+32*n
+sca=sb[811:811+struct.unpack_from('<I',sb,160)[0]]; o=0
+while o<len(sca): o+=17+chunk(sca,o+17,struct.unpack_from('<Q',sca,o+9)[0])
+def phys(l):
+    for s,(ln,p) in chunks.items():
+        if s<=l<s+ln: return p+l-s
+def items(bytenr):
+    b=rd(phys(bytenr),NS)
+    assert struct.unpack_from('<I',b)[0]==csum(b[32:]),'node %d csum'%bytenr
+    n,level=struct.unpack_from('<IB',b,96)
+    for i in range(n):
+        if level: yield from items(struct.unpack_from('<Q',b,101+i*33+17)[0]); continue
+        k=struct.unpack_from('<QBQII',b,101+i*25); yield k[:3],b[101+k[3]:101+k[3]+k[4]]
+for (o,t,off),d in items(chunk_root):
+    if t==228: chunk(d,0,off)
+fsroot=[struct.unpack_from('<Q',d,176)[0] for (o,t,off),d in items(root) if o==5 and t==132][0]
+inodes={}; names={}; data={}
+for (o,t,off),d in items(fsroot):
+    if t==1: inodes[o]=struct.unpack_from('<Q',d,16)[0]
+    if t==96: names[struct.unpack_from('<Q',d,0)[0]]=d[30:30+struct.unpack_from('<H',d,27)[0]].decode()
+    if t==108: data.setdefault(o,[]).append((off,)+struct.unpack_from('<QQQQ',d,21))
+for ino,name in sorted(names.items(),key=lambda i:i[1]):
+    out=bytearray()
+    for off,bytenr,disk,eoff,num in sorted(data.get(ino,[])):
+        out[off:off+num]=rd(phys(bytenr+eoff),num)
+    print('%s  ./%s'%(hashlib.md5(bytes(out[:inodes[ino]])).hexdigest(),name))
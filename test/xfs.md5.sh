@@ -0,0 +1,13 @@
+#!/bin/bash
+
+disk=${1:-xfs.raw}
+mnt=$(mktemp -d)
+mount -o loop,ro,nouuid,offset=1048576 $disk $mnt
+wd=$(pwd)
+cd $mnt
+find . -type f -exec md5sum "{}" \; | sort -k2 > $wd/xfs.md5
+cd - > /dev/null
+umount $mnt
+rm -fr $mnt
+
+if [ $SUDO_USER ]; then chown $SUDO_USER:$(id -gn $SUDO_USER) xfs.md5; fi